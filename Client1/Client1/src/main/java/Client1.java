@@ -0,0 +1,221 @@
+import client.RejectedException;
+import client.TaskClient;
+import client.TaskEvent;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+public class Client1 {
+    // Replace with your server's actual IP if different, or pass -Dclient.host=<ip>
+    private static final String SERVER_IP = System.getProperty("client.host", "192.168.244.128");
+    private static final int PORT = 2500;
+    private static final String CLIENT_NAME = "Client1";
+    private static TaskClient client;
+    private static volatile boolean running = true; // volatile ensures visibility across threads
+
+    public static void main(String[] args) throws InterruptedException {
+        // Using a ScheduledExecutorService for the periodic task requests
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+        // The client library connects in the background and reconnects (with backoff) whenever the
+        // connection drops; requests made meanwhile are sent once it is back.
+        logInfo("Connecting to server " + SERVER_IP + ":" + PORT + "...");
+        client = new TaskClient(SERVER_IP, PORT, new TaskClient.Listener() {
+            @Override
+            public void onEvent(TaskEvent event) {
+                printEvent(event);
+            }
+
+            @Override
+            public void onConnected() {
+                logInfo("Connected to server " + SERVER_IP + ":" + PORT + ".");
+            }
+
+            @Override
+            public void onDisconnected(IOException cause, long retryInMillis) {
+                logError("Server connection unavailable (" + cause.getMessage() + "), retrying in " + retryInMillis + " ms.");
+            }
+        }).start();
+
+        // Run local scripts asynchronously (assuming they exist in the same directory)
+        runAsyncScript("ssh_config.sh");
+        runAsyncScript("fix_perms.sh");
+        // Run login_audit.sh in the background, redirecting output
+        runBackgroundScript("login_audit.sh");
+        logInfo("Initial local scripts launched.");
+
+        // Schedule task requests every 5 minutes (no initial delay)
+        logInfo("Scheduling periodic tasks every 5 minutes.");
+        scheduler.scheduleAtFixedRate(() -> sendTaskRequest(2001, 1), 0, 5, TimeUnit.MINUTES);
+        scheduler.scheduleAtFixedRate(() -> sendTaskRequest(2003, 1), 0, 5, TimeUnit.MINUTES);
+
+        // Handle manual user commands from the console until 'exit'
+        handleManualCommands();
+
+        scheduler.shutdownNow();
+        client.close();
+        logInfo("Exiting.");
+    }
+
+    // Prints a task event broadcast by the server
+    private static void printEvent(TaskEvent event) {
+        System.out.println("\n[" + getCurrentTimestamp() + "] === Task Event ===");
+        System.out.println(" " + event);
+        System.out.println("========================");
+    }
+
+    // Formats and prints a reply to one of our requests
+    private static void printReply(String title, String message) {
+        System.out.println("\n[" + getCurrentTimestamp() + "] === " + title + " ===");
+        // Print multi-line messages correctly
+        for (String line : message.split("\n")) {
+            System.out.println("   " + line); // Indent message lines for clarity
+        }
+        System.out.println("========================");
+        // Prompt user again after showing server response
+        System.out.print("\nEnter command (QUEUE_STATUS/CANCEL_TASK;ID/TASK_HISTORY/exit): ");
+    }
+
+    // Reports a failed request: a REJECTED reply, a connection lost before the reply, or the client being closed
+    private static Void printFailure(String request, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof RejectedException) {
+            printReply("Rejected: " + request, cause.getMessage());
+        } else {
+            logError(request + " failed: " + cause.getMessage());
+        }
+        return null;
+    }
+
+    // Runs a local script asynchronously in a new thread
+    private static void runAsyncScript(String scriptName) {
+        new Thread(() -> {
+            logInfo("Starting local script: " + scriptName);
+            try {
+                ProcessBuilder pb = new ProcessBuilder("./" + scriptName);
+                pb.redirectErrorStream(true); // Merge stdout and stderr of the script
+                Process process = pb.start();
+
+                // Log output from the script (optional, can be noisy)
+                logScriptOutput(scriptName, process);
+
+                int exitCode = process.waitFor(); // Wait for script completion
+                if (exitCode == 0) {
+                    logInfo(scriptName + " completed successfully.");
+                } else {
+                    logError(scriptName + " finished with exit code: " + exitCode);
+                }
+            } catch (IOException e) {
+                logError("Failed to run " + scriptName + " (IOException): " + e.getMessage());
+            } catch (InterruptedException e) {
+                logError("Execution of " + scriptName + " interrupted: " + e.getMessage());
+                Thread.currentThread().interrupt(); // Restore interrupted status
+            } catch (Exception e) {
+                logError("Failed to run " + scriptName + " (General Exception): " + e.getMessage());
+            }
+        }, "ScriptRunner-" + scriptName).start(); // Give the thread a descriptive name
+    }
+
+    // Runs a script in the background using nohup, redirecting output
+    private static void runBackgroundScript(String scriptName) {
+         logInfo("Starting background script: " + scriptName + " with output to audit.log/script_errors.log");
+        try {
+            // Using nohup ensures the script keeps running even if the client terminal closes (in some environments)
+            // Redirect standard output to audit.log (append)
+            // Redirect standard error to script_errors.log (append)
+            new ProcessBuilder("nohup", "./" + scriptName)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File("audit.log")))
+                .redirectError(ProcessBuilder.Redirect.appendTo(new File("script_errors.log")))
+                .start();
+             logInfo("Background script " + scriptName + " launched.");
+        } catch (IOException e) {
+            logError("Failed to start background script " + scriptName + ": " + e.getMessage());
+        }
+    }
+
+    // Sends a task request to the server; the reply arrives asynchronously
+    private static void sendTaskRequest(int serviceNumber, int priority) {
+        String request = "REQUEST_TASK;" + serviceNumber + ";" + CLIENT_NAME + ";" + priority;
+        logInfo("Sending request: " + request);
+        client.submitTask(serviceNumber, CLIENT_NAME, priority, null)
+              .thenAccept(taskId -> logInfo("Service " + serviceNumber + " queued with TaskID " + taskId))
+              .exceptionally(error -> printFailure(request, error));
+    }
+
+    // Handles manual commands entered by the user in the console (blocks until 'exit' or end of input)
+    private static void handleManualCommands() {
+        Scanner scanner = new Scanner(System.in);
+        while (running) {
+            System.out.print("\nEnter command (QUEUE_STATUS/CANCEL_TASK;ID/TASK_HISTORY/exit): ");
+            if (!scanner.hasNextLine()) { // Handle end of input stream
+                break;
+            }
+            String command = scanner.nextLine().trim();
+
+            if (command.equalsIgnoreCase("exit")) {
+                running = false; // Signal other threads to stop
+            } else if (command.isEmpty()) {
+                continue; // Ignore empty input
+            } else if (command.equalsIgnoreCase("QUEUE_STATUS")) {
+                client.queueStatus()
+                      .thenAccept(status -> printReply("Queue Status", status))
+                      .exceptionally(error -> printFailure(command, error));
+            } else if (command.toUpperCase().startsWith("CANCEL_TASK;")) {
+                try {
+                    int taskId = Integer.parseInt(command.substring(12).trim());
+                    client.cancel(taskId)
+                          .thenAccept(id -> printReply("Cancelled", "TaskID " + id + " cancelled successfully"))
+                          .exceptionally(error -> printFailure(command, error));
+                } catch (NumberFormatException e) {
+                    logError("Invalid TaskID format. TaskID must be an integer.");
+                }
+            } else if (command.equalsIgnoreCase("TASK_HISTORY") || command.toUpperCase().startsWith("TASK_HISTORY;")) {
+                // Optional filters, e.g. TASK_HISTORY;status=ERROR;limit=20
+                String filters = command.length() > 13 ? command.substring(13) : "";
+                client.history(filters)
+                      .thenAccept(history -> printReply("Task History", history))
+                      .exceptionally(error -> printFailure(command, error));
+            } else {
+                logError("Unknown command: " + command);
+            }
+        }
+        running = false;
+        logInfo("Manual command listener stopped.");
+    }
+
+    // Logs output from a running script process (run in its own thread)
+    private static void logScriptOutput(String scriptName, Process process) {
+        new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                     // Log script output with script name prefix (optional)
+                     // System.out.println("[" + getCurrentTimestamp() + "] [" + scriptName + "] " + line);
+                     // Suppressed to match desired output from description, but kept for debugging option
+                }
+            } catch (IOException e) {
+                logError("Error reading output from " + scriptName + ": " + e.getMessage());
+            }
+        }, "OutputLogger-" + scriptName).start();
+    }
+
+    // Utility method for logging informational messages
+    private static void logInfo(String message) {
+        System.out.println("[" + getCurrentTimestamp() + "] CLIENT1 INFO - " + message);
+    }
+
+
+    // Utility method for logging error messages
+    private static void logError(String message) {
+        System.err.println("[" + getCurrentTimestamp() + "] CLIENT1 ERROR - " + message);
+    }
+
+     // Utility method to get current timestamp as string
+    private static String getCurrentTimestamp() {
+        return LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")); // Added milliseconds
+    }
+}
+
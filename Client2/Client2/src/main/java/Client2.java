@@ -0,0 +1,205 @@
+import client.RejectedException;
+import client.TaskClient;
+import client.TaskEvent;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+public class Client2 {
+    private static final String SERVER_IP = System.getProperty("client.host", "192.168.244.128");
+    private static final int PORT = 2500;
+    private static final String CLIENT_NAME = "Client2";
+    // Account checked by service 2005 (runs MySQL_login_<user>.sh on the server)
+    private static final String MYSQL_USER = System.getProperty("client.mysqlUser", "admin");
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+
+        // Reconnects with backoff on its own; replies and broadcast events arrive on its I/O thread
+        TaskClient client = new TaskClient(SERVER_IP, PORT, new TaskClient.Listener() {
+            @Override
+            public void onEvent(TaskEvent event) {
+                printEvent(event);
+            }
+
+            @Override
+            public void onConnected() {
+                log("Connected to " + SERVER_IP + ":" + PORT);
+            }
+
+            @Override
+            public void onDisconnected(IOException cause, long retryInMillis) {
+                logError("Connection error: " + cause.getMessage() + " (retrying in " + retryInMillis + " ms)");
+            }
+        }).start();
+
+        // Run local scripts asynchronously
+        runAsyncScript("resource_report.sh");
+        runAsyncScript("quota_check.sh");
+
+        // Schedule staggered task requests
+        scheduler.scheduleAtFixedRate(() ->
+            sendRequest(client, 2004, 3, null), 0, 5, TimeUnit.MINUTES);        // File audit (Low)
+        scheduler.scheduleAtFixedRate(() ->
+            sendRequest(client, 2005, 1, MYSQL_USER), 2, 5, TimeUnit.MINUTES);  // MySQL login (High)
+
+        // Handle manual commands
+        handleManualInput(client);
+
+        // Keep main thread alive
+        while (running) {
+            Thread.sleep(1000);
+        }
+        scheduler.shutdown();
+        client.close();
+    }
+
+    private static void handleManualInput(TaskClient client) {
+        new Thread(() -> {
+            Scanner scanner = new Scanner(System.in);
+            while (running) {
+                printCommandMenu();
+                String line = scanner.nextLine().trim();
+                String cmd = line.toLowerCase();
+                
+                if (handleExitCommand(cmd)) break;
+                
+                processCommand(client, cmd, line, scanner);
+            }
+            scanner.close();
+        }).start();
+    }
+
+    private static void printCommandMenu() {
+        System.out.println("\n=== Client2 Controls ===");
+        System.out.println("[1] View Task Queue (QUEUE_STATUS)");
+        System.out.println("[2] Cancel Task (CANCEL_TASK;ID)");
+        System.out.println("[3] View History (TASK_HISTORY)");
+        System.out.println("[4] Exit");
+        System.out.print("Select option: ");
+    }
+
+    private static boolean handleExitCommand(String cmd) {
+        if (cmd.equals("4") || cmd.equals("exit")) {
+            running = false;
+            return true;
+        }
+        return false;
+    }
+
+    // cmd is the lower-cased input used to match menu options; line is the input as typed.
+    private static void processCommand(TaskClient client, String cmd, String line, Scanner scanner) {
+        switch (cmd) {
+            case "1":
+                client.queueStatus()
+                      .thenAccept(status -> printListing("Current Task Queue", status))
+                      .exceptionally(error -> printFailure("QUEUE_STATUS", error));
+                break;
+
+            case "2":
+                System.out.print("Enter TaskID to cancel: ");
+                String taskId = scanner.nextLine().trim();
+                if (taskId.matches("\\d+")) {
+                    client.cancel(Integer.parseInt(taskId))
+                          .thenAccept(id -> log("Task " + id + " cancelled"))
+                          .exceptionally(error -> printFailure("CANCEL_TASK;" + taskId, error));
+                    break;
+                }
+                logError("Invalid TaskID format");
+                break;
+
+            case "3":
+                client.history("")
+                      .thenAccept(history -> printListing("Task Execution History", history))
+                      .exceptionally(error -> printFailure("TASK_HISTORY", error));
+                break;
+
+            default:
+                // Anything else is sent to the server as a raw command.
+                client.command(line)
+                      .thenAccept(reply -> System.out.println("[Server] " + reply))
+                      .exceptionally(error -> printFailure(line, error));
+        }
+    }
+
+    private static void printListing(String title, String message) {
+        System.out.println("\n=== " + title + " ===");
+        System.out.println(message.replace("\n", "\n• "));
+    }
+
+    private static void printEvent(TaskEvent event) {
+        String time = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(event.time), java.time.ZoneId.systemDefault())
+                                   .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        switch (event.status) {
+            case EXECUTING:
+                System.out.printf("\n[%s] Task %d (%s) started execution\n", time, event.taskId, event.scriptName);
+                break;
+
+            case COMPLETED:
+                System.out.printf("\n[%s] Task %d (%s) completed successfully%s\n", time, event.taskId, event.scriptName,
+                                  event.detail.isEmpty() ? "" : " (" + event.detail + ")");
+                break;
+
+            default:
+                System.out.printf("\n[%s] Task %d (%s) failed: %s\n", time, event.taskId, event.scriptName, event.detail);
+        }
+    }
+
+    private static Void printFailure(String request, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof RejectedException) {
+            logError(request + " rejected: " + cause.getMessage());
+        } else {
+            logError(request + " failed: " + cause.getMessage());
+        }
+        return null;
+    }
+
+    private static void runAsyncScript(String scriptName) {
+        new Thread(() -> {
+            try {
+                Process process = new ProcessBuilder("./" + scriptName).start();
+                logScriptOutput(scriptName, process);
+                int exitCode = process.waitFor();
+                log(scriptName + " exited with code: " + exitCode);
+            } catch (Exception e) {
+                logError("Script failed: " + scriptName + " - " + e.getMessage());
+            }
+        }).start();
+    }
+
+    private static void logScriptOutput(String scriptName, Process process) {
+        new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    log(scriptName + ": " + line);
+                }
+            } catch (IOException e) {
+                logError("Output read error: " + e.getMessage());
+            }
+        }).start();
+    }
+
+    private static void sendRequest(TaskClient client, int service, int priority, String userName) {
+        client.submitTask(service, CLIENT_NAME, priority, userName)
+              .thenAccept(taskId -> log("Submitted request: " + service + " (Priority: " + priority + ") as TaskID " + taskId))
+              .exceptionally(error -> printFailure("REQUEST_TASK;" + service, error));
+    }
+
+    private static void log(String message) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        System.out.println("[" + timestamp + "] CLIENT2 - " + message);
+    }
+
+    private static void logError(String message) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        System.err.println("[" + timestamp + "] CLIENT2 ERROR - " + message);
+    }
+}
+
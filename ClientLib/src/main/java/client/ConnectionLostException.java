@@ -0,0 +1,13 @@
+package client;
+
+import java.io.IOException;
+
+// The connection dropped after the request was sent and before its reply arrived, so the server
+// may or may not have carried it out. Check (e.g. with queueStatus or history) before retrying.
+public class ConnectionLostException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ConnectionLostException(String message) {
+        super(message);
+    }
+}
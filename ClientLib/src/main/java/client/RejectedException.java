@@ -0,0 +1,10 @@
+package client;
+
+// The server answered a request with REJECTED; the message is the server's reason.
+public class RejectedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public RejectedException(String reason) {
+        super(reason);
+    }
+}
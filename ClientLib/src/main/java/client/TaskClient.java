@@ -0,0 +1,411 @@
+package client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Asynchronous client for the task server. It speaks the server's binary protocol, so every
+// request carries an id and any number of requests can be in flight on the one connection; each
+// call returns a future completed by the reply with the same id. Broadcast task events (request
+// id 0) go to the Listener instead.
+//
+// A dedicated I/O thread owns the connection. When it drops, the thread reconnects with
+// exponential backoff (with jitter) and resends the unanswered requests that are safe to repeat,
+// in the order they were made; requests made while disconnected are sent once the connection is
+// back. Queries are safe to repeat, and so is submitTask: each submit carries a random token and
+// the server answers a resent token with the TaskID of the original. Other requests that were
+// already sent (cancel, submitBatch, schedule, unschedule, command) fail with ConnectionLostException
+// instead, since repeating them could act twice or report a spurious rejection.
+public class TaskClient implements AutoCloseable {
+    public interface Listener {
+        default void onEvent(TaskEvent event) {
+        }
+
+        default void onConnected() {
+        }
+
+        // Called when the connection is lost or could not be made; a reconnect is already scheduled.
+        default void onDisconnected(IOException cause, long retryInMillis) {
+        }
+    }
+
+    // Frame layout and opcodes of the server's BinaryProtocol.
+    private static final String NEGOTIATE = "PROTOCOL;BINARY";
+    private static final byte SUBMIT = 0x01;
+    private static final byte QUEUE_STATUS = 0x02;
+    private static final byte CANCEL = 0x03;
+    private static final byte HISTORY = 0x04;
+    private static final byte METRICS = 0x06;
+    private static final byte BATCH = 0x09;
+    private static final byte BATCH_STATUS = 0x0A;
+    private static final byte SCHEDULE = 0x0B;
+    private static final byte UNSCHEDULE = 0x0C;
+    private static final byte LIST_SCHEDULES = 0x0D;
+    private static final byte COMMAND = 0x0E;
+    private static final byte QUEUED = (byte) 0x81;
+    private static final byte CANCELLED = (byte) 0x82;
+    private static final byte OK = (byte) 0x83;
+    private static final byte REJECTED = (byte) 0x84;
+    private static final byte EVENT = (byte) 0x90;
+    private static final int MAX_REPLY_LENGTH = 16 << 20;
+
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+
+    private static final class Request {
+        final byte[] frame;
+        final boolean resend;
+        final CompletableFuture<Object> reply = new CompletableFuture<>();
+        // Connection generation this request was last written to (0 if never); guarded by writeLock.
+        int sentOn;
+
+        Request(byte[] frame, boolean resend) {
+            this.frame = frame;
+            this.resend = resend;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Listener listener;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    // Unanswered requests by id; ids only grow (skipping 0), so iteration order is request order.
+    private final Map<Integer, Request> inFlight = new ConcurrentSkipListMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Thread ioThread;
+    private DataOutputStream out;
+    private int generation;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    public TaskClient(String host, int port, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.listener = listener != null ? listener : new Listener() { };
+        this.ioThread = new Thread(this::run, "task-client-" + host + ":" + port);
+        this.ioThread.setDaemon(true);
+    }
+
+    // Starts connecting in the background; requests may be made before the connection is up.
+    public TaskClient start() {
+        ioThread.start();
+        return this;
+    }
+
+    public boolean isConnected() {
+        writeLock.lock();
+        try {
+            return out != null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Completes with the TaskID the server assigned (or the TaskID the request was coalesced into).
+    public CompletableFuture<Integer> submitTask(int serviceNumber, String clientName, int priority, String userName) {
+        byte[] client = shortString(clientName);
+        byte[] user = shortString(userName);
+        ByteBuffer payload = ByteBuffer.allocate(2 + 4 + 2 + client.length + 2 + user.length + 8);
+        payload.putShort((short) serviceNumber).putInt(priority)
+               .putShort((short) client.length).put(client)
+               .putShort((short) user.length).put(user)
+               .putLong(token());
+        return send(SUBMIT, payload.array(), true).thenApply(Integer.class::cast);
+    }
+
+    // nodes as in REQUEST_BATCH, e.g. "setup=2001;perms=2002@setup;audit=2004@perms". Completes with
+    // the server's "Batch queued with ID N" listing of every node's TaskID and status.
+    public CompletableFuture<String> submitBatch(String clientName, int priority, String nodes) {
+        byte[] client = shortString(clientName);
+        byte[] spec = shortString(nodes);
+        ByteBuffer payload = ByteBuffer.allocate(2 + client.length + 4 + 2 + spec.length);
+        payload.putShort((short) client.length).put(client).putInt(priority)
+               .putShort((short) spec.length).put(spec);
+        return send(BATCH, payload.array(), false).thenApply(String.class::cast);
+    }
+
+    public CompletableFuture<String> batchStatus(int batchId) {
+        return send(BATCH_STATUS, ByteBuffer.allocate(4).putInt(batchId).array(), true).thenApply(String.class::cast);
+    }
+
+    // Creates a recurring task on the server; spec is an interval such as "5m" or a cron expression
+    // such as "*/5 * * * *". Completes with "Schedule created with ID N; next run at ...".
+    public CompletableFuture<String> schedule(int serviceNumber, String spec, int priority, String clientName, String userName) {
+        byte[] cron = shortString(spec);
+        byte[] client = shortString(clientName);
+        byte[] user = shortString(userName);
+        ByteBuffer payload = ByteBuffer.allocate(2 + 2 + cron.length + 4 + 2 + client.length + 2 + user.length);
+        payload.putShort((short) serviceNumber)
+               .putShort((short) cron.length).put(cron).putInt(priority)
+               .putShort((short) client.length).put(client)
+               .putShort((short) user.length).put(user);
+        return send(SCHEDULE, payload.array(), false).thenApply(String.class::cast);
+    }
+
+    public CompletableFuture<String> unschedule(int scheduleId) {
+        return send(UNSCHEDULE, ByteBuffer.allocate(4).putInt(scheduleId).array(), false).thenApply(String.class::cast);
+    }
+
+    // filters as in LIST_SCHEDULES, e.g. "client=Client1;after=12;limit=100", or "" for the first page.
+    public CompletableFuture<String> listSchedules(String filters) {
+        byte[] text = shortString(filters);
+        return send(LIST_SCHEDULES, ByteBuffer.allocate(2 + text.length).putShort((short) text.length).put(text).array(), true)
+                .thenApply(String.class::cast);
+    }
+
+    // Completes with the cancelled TaskID.
+    public CompletableFuture<Integer> cancel(int taskId) {
+        return send(CANCEL, ByteBuffer.allocate(4).putInt(taskId).array(), false).thenApply(Integer.class::cast);
+    }
+
+    public CompletableFuture<String> queueStatus() {
+        return send(QUEUE_STATUS, new byte[0], true).thenApply(String.class::cast);
+    }
+
+    // One page of the sorted queue; the listing ends with "More entries available: offset=N" if there is more.
+    public CompletableFuture<String> queueStatus(int offset, int limit) {
+        return send(QUEUE_STATUS, ByteBuffer.allocate(8).putInt(offset).putInt(limit).array(), true).thenApply(String.class::cast);
+    }
+
+    // filters as in TASK_HISTORY, e.g. "client=Client2;status=ERROR;limit=50", or "" for everything.
+    public CompletableFuture<String> history(String filters) {
+        byte[] text = shortString(filters);
+        return send(HISTORY, ByteBuffer.allocate(2 + text.length).putShort((short) text.length).put(text).array(), true)
+                .thenApply(String.class::cast);
+    }
+
+    // Sends one text protocol command, e.g. "CANCEL_TASK;12". Completes with the reply text, or with
+    // "TaskID N" when the server answers with a queued or cancelled TaskID. Never resent.
+    public CompletableFuture<String> command(String line) {
+        byte[] text = shortString(line);
+        return send(COMMAND, ByteBuffer.allocate(2 + text.length).putShort((short) text.length).put(text).array(), false)
+                .thenApply(reply -> reply instanceof Integer ? "TaskID " + reply : (String) reply);
+    }
+
+    public CompletableFuture<String> metrics() {
+        return send(METRICS, new byte[0], true).thenApply(String.class::cast);
+    }
+
+    public int pendingRequests() {
+        return inFlight.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+        ioThread.interrupt();
+        IOException cause = new IOException("Client closed");
+        for (Request request : inFlight.values()) {
+            request.reply.completeExceptionally(cause);
+        }
+        inFlight.clear();
+    }
+
+    // resend: whether the request may be sent again after a reconnect (see the class comment).
+    private CompletableFuture<Object> send(byte opcode, byte[] payload, boolean resend) {
+        int requestId = nextRequestId.incrementAndGet();
+        if (requestId == 0) requestId = nextRequestId.incrementAndGet();
+        ByteBuffer frame = ByteBuffer.allocate(4 + 4 + 1 + payload.length);
+        frame.putInt(4 + 1 + payload.length).putInt(requestId).put(opcode).put(payload);
+        Request request = new Request(frame.array(), resend);
+        if (closed) {
+            request.reply.completeExceptionally(new IOException("Client closed"));
+            return request.reply;
+        }
+        inFlight.put(requestId, request);
+        writeLock.lock();
+        try {
+            if (out != null && request.sentOn != generation) {
+                request.sentOn = generation;
+                out.write(request.frame);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The I/O thread sees the broken connection too and resends the request after reconnecting,
+            // unless it is not safe to repeat; disconnect() then fails it.
+            disconnect();
+        } finally {
+            writeLock.unlock();
+        }
+        return request.reply;
+    }
+
+    private void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (!closed) {
+            DataInputStream in;
+            try {
+                in = connect();
+                backoff = MIN_BACKOFF_MILLIS;
+                listener.onConnected();
+                try {
+                    readReplies(in);
+                } catch (EOFException eof) {
+                    // DataInputStream's EOFException carries no message
+                }
+                throw new EOFException("Server closed the connection");
+            } catch (IOException e) {
+                disconnect();
+                if (closed) break;
+                long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                listener.onDisconnected(e, delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+            }
+        }
+    }
+
+    // Connects, switches the connection to binary frames and resends unanswered requests.
+    private DataInputStream connect() throws IOException {
+        Socket s = new Socket();
+        socket = s;
+        s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        s.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        DataOutputStream o = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        o.write((NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8));
+        o.flush();
+        // Broadcasts may arrive as text until the server has switched this connection over.
+        String line;
+        do {
+            line = readLine(in);
+            if (line.contains(";REJECTED: ")) throw new IOException(line.substring(line.indexOf("REJECTED: ")));
+        } while (!line.endsWith(";PROTOCOL BINARY"));
+
+        writeLock.lock();
+        try {
+            out = o;
+            generation++;
+            for (Request request : inFlight.values()) {
+                request.sentOn = generation;
+                o.write(request.frame);
+            }
+            o.flush();
+        } finally {
+            writeLock.unlock();
+        }
+        return in;
+    }
+
+    // Also fails the requests that were sent on the dropped connection and must not be resent.
+    private void disconnect() {
+        List<Request> lost = new ArrayList<>();
+        writeLock.lock();
+        try {
+            out = null;
+            for (Iterator<Request> it = inFlight.values().iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (request.sentOn != 0 && !request.resend) {
+                    it.remove();
+                    lost.add(request);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        for (Request request : lost) {
+            request.reply.completeExceptionally(new ConnectionLostException("Connection lost before the reply arrived"));
+        }
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void readReplies(DataInputStream in) throws IOException {
+        while (!closed) {
+            int length = in.readInt();
+            if (length < 5 || length > MAX_REPLY_LENGTH) throw new IOException("Invalid frame length " + length);
+            int requestId = in.readInt();
+            byte opcode = in.readByte();
+            byte[] body = new byte[length - 5];
+            in.readFully(body);
+            ByteBuffer payload = ByteBuffer.wrap(body);
+
+            if (opcode == EVENT) {
+                long time = payload.getLong();
+                int taskId = payload.getInt();
+                byte status = payload.get();
+                listener.onEvent(new TaskEvent(time, taskId, statusOf(status), readShortString(payload), readShortString(payload)));
+                continue;
+            }
+            Request request = inFlight.remove(requestId);
+            if (request == null) continue;
+            payload.getLong();
+            if (opcode == QUEUED || opcode == CANCELLED) {
+                request.reply.complete(payload.getInt());
+            } else {
+                byte[] text = new byte[payload.getInt()];
+                payload.get(text);
+                String message = new String(text, StandardCharsets.UTF_8);
+                if (opcode == OK) request.reply.complete(message);
+                else if (opcode == REJECTED) request.reply.completeExceptionally(new RejectedException(message));
+                else request.reply.completeExceptionally(new IOException("Unexpected reply opcode " + opcode));
+            }
+        }
+    }
+
+    private static TaskEvent.Status statusOf(byte status) {
+        switch (status) {
+            case 1:  return TaskEvent.Status.EXECUTING;
+            case 2:  return TaskEvent.Status.COMPLETED;
+            default: return TaskEvent.Status.ERROR;
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new EOFException("Server closed the connection");
+            if (b != '\r') line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String readShortString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long token() {
+        long token;
+        do {
+            token = ThreadLocalRandom.current().nextLong();
+        } while (token == 0);
+        return token;
+    }
+
+    private static byte[] shortString(String s) {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) throw new IllegalArgumentException("String too long: " + bytes.length + " bytes");
+        return bytes;
+    }
+}
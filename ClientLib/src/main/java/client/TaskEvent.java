@@ -0,0 +1,26 @@
+package client;
+
+// A task lifecycle event broadcast by the server (EVENT frame).
+public final class TaskEvent {
+    public enum Status { EXECUTING, COMPLETED, ERROR }
+
+    public final long time;
+    public final int taskId;
+    public final Status status;
+    public final String scriptName;
+    // Extra information, e.g. "exit code 3" for ERROR or "cached result from ..." for a reused result.
+    public final String detail;
+
+    TaskEvent(long time, int taskId, Status status, String scriptName, String detail) {
+        this.time = time;
+        this.taskId = taskId;
+        this.status = status;
+        this.scriptName = scriptName;
+        this.detail = detail;
+    }
+
+    @Override
+    public String toString() {
+        return status + ": TaskID " + taskId + " (" + scriptName + ")" + (detail.isEmpty() ? "" : " " + detail);
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Open-loop load generator for the task server. It opens N connections and sends a weighted mix
+// of REQUEST_TASK / QUEUE_STATUS / CANCEL_TASK / TASK_HISTORY at a fixed target rate, round-robin
+// over the connections, without waiting for replies. Replies are matched to requests per
+// connection (the server answers each connection in order), and broadcast EXECUTING / COMPLETED /
+// ERROR events are matched to the submitted TaskIDs. Latencies are measured from the moment a
+// request was scheduled to be sent, so a stalled server cannot hide its own backlog.
+//
+// To run everything on one box, start the server from the stubs directory (its scripts just sleep
+// STUB_SLEEP seconds) with client rate limiting off, then point the generator at it:
+//   cd LoadGenerator/LoadGenerator/stubs
+//   java -Dserver.ratelimit.client.default=unlimited -jar ../../../Server/Server/target/server.jar
+//   java -jar LoadGenerator/LoadGenerator/target/loadgen.jar host=localhost connections=16 rate=200 duration=30
+//
+// Options (key=value): host, port, connections, rate (requests/s), duration (s), drain (s to wait
+// for outstanding tasks afterwards), services (e.g. 2001,2003), mix (submit,status,cancel,history
+// weights, e.g. 70,10,10,10).
+public class LoadGenerator {
+    private static final String CLIENT_PREFIX = "LoadGen-";
+
+    enum Op { SUBMIT, STATUS, CANCEL, HISTORY }
+
+    private static final class Request {
+        final Op op;
+        final long scheduledAt;
+
+        Request(Op op, long scheduledAt) {
+            this.op = op;
+            this.scheduledAt = scheduledAt;
+        }
+    }
+
+    // Growable list of nanosecond samples, sorted once when the report is printed.
+    private static final class Samples {
+        private long[] values = new long[1024];
+        private int size;
+
+        synchronized void add(long nanos) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = nanos;
+        }
+
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    private static final class Connection {
+        final int index;
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+        final ArrayDeque<Request> inFlight = new ArrayDeque<>();
+
+        Connection(int index, String host, int port) throws IOException {
+            this.index = index;
+            this.socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        synchronized void send(Request request, String line) throws IOException {
+            inFlight.addLast(request);
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        synchronized Request nextReply() {
+            return inFlight.pollFirst();
+        }
+
+        synchronized int pending() {
+            return inFlight.size();
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int connectionCount;
+    private final double rate;
+    private final int durationSeconds;
+    private final int drainSeconds;
+    private final int[] services;
+    private final int[] mix;
+
+    private final Map<Op, Samples> ackLatency = new EnumMap<>(Op.class);
+    private final Map<Op, LongAdder> sentByOp = new EnumMap<>(Op.class);
+    private final Samples queuedToExecuting = new Samples();
+    private final Samples queuedToCompleted = new Samples();
+    private final Map<String, LongAdder> rejections = new ConcurrentHashMap<>();
+    // Submitted tasks by TaskID: when the request was scheduled, until the task finishes or is cancelled.
+    private final Map<Integer, Long> outstanding = new ConcurrentHashMap<>();
+    private final Set<Integer> executing = ConcurrentHashMap.newKeySet();
+    // Events that overtook the QUEUED reply of their request (they arrive on another connection),
+    // by TaskID: when EXECUTING was seen, and when and how the task finished (+time / -time for ERROR).
+    private final Map<Integer, Long> earlyExecuting = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> earlyFinished = new ConcurrentHashMap<>();
+    private final Deque<Integer> cancelCandidates = new ConcurrentLinkedDeque<>();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final AtomicLong maxLag = new AtomicLong();
+    private final AtomicLongArray sentPerSecond;
+    private final AtomicLongArray ackedPerSecond;
+    private final AtomicLongArray completedPerSecond;
+    private volatile long startedAt;
+
+    LoadGenerator(Map<String, String> options) {
+        host = options.getOrDefault("host", "localhost");
+        port = Integer.parseInt(options.getOrDefault("port", "2500"));
+        connectionCount = Integer.parseInt(options.getOrDefault("connections", "8"));
+        rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        drainSeconds = Integer.parseInt(options.getOrDefault("drain", "10"));
+        services = Arrays.stream(options.getOrDefault("services", "2001,2002,2003,2004").split(","))
+                         .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+        mix = Arrays.stream(options.getOrDefault("mix", "70,10,10,10").split(","))
+                    .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+        if (connectionCount <= 0 || rate <= 0 || durationSeconds <= 0 || services.length == 0 || mix.length != 4) {
+            throw new IllegalArgumentException("connections, rate and duration must be positive, "
+                                               + "services non-empty and mix four weights");
+        }
+        for (Op op : Op.values()) {
+            ackLatency.put(op, new Samples());
+            sentByOp.put(op, new LongAdder());
+        }
+        int seconds = durationSeconds + drainSeconds + 2;
+        sentPerSecond = new AtomicLongArray(seconds);
+        ackedPerSecond = new AtomicLongArray(seconds);
+        completedPerSecond = new AtomicLongArray(seconds);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("Usage: LoadGenerator [host=H] [port=P] [connections=N] [rate=R] [duration=S] "
+                                   + "[drain=S] [services=2001,2003] [mix=submit,status,cancel,history]");
+                System.exit(2);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    void run() throws IOException, InterruptedException {
+        Connection[] connections = new Connection[connectionCount];
+        for (int i = 0; i < connectionCount; i++) {
+            connections[i] = new Connection(i, host, port);
+            Connection connection = connections[i];
+            Thread reader = new Thread(() -> read(connection), "loadgen-reader-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        System.out.printf("Connected %d client(s) to %s:%d; sending %.1f requests/s for %d s%n",
+                          connectionCount, host, port, rate, durationSeconds);
+
+        startedAt = System.nanoTime();
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long end = startedAt + TimeUnit.SECONDS.toNanos(durationSeconds);
+        Random random = new Random();
+        for (long i = 0; ; i++) {
+            long scheduledAt = startedAt + i * interval;
+            if (scheduledAt >= end) break;
+            long wait = scheduledAt - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else {
+                maxLag.accumulateAndGet(-wait, Math::max);
+            }
+            send(connections[(int) (i % connectionCount)], random, scheduledAt);
+        }
+
+        long drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (System.nanoTime() < drainEnd && (!outstanding.isEmpty() || anyPending(connections))) {
+            Thread.sleep(50);
+        }
+        for (Connection connection : connections) {
+            connection.socket.close();
+        }
+        report(connections);
+    }
+
+    private void send(Connection connection, Random random, long scheduledAt) throws IOException {
+        Op op = pick(random);
+        String line;
+        switch (op) {
+            case SUBMIT:
+                line = "REQUEST_TASK;" + services[random.nextInt(services.length)] + ";" + CLIENT_PREFIX + connection.index
+                       + ";" + (1 + random.nextInt(5));
+                break;
+            case CANCEL:
+                Integer taskId = cancelCandidates.pollLast();
+                if (taskId == null) {
+                    op = Op.STATUS;
+                    line = "QUEUE_STATUS";
+                } else {
+                    line = "CANCEL_TASK;" + taskId;
+                }
+                break;
+            case HISTORY:
+                line = "TASK_HISTORY;client=" + CLIENT_PREFIX + connection.index + ";limit=20";
+                break;
+            default:
+                line = "QUEUE_STATUS";
+        }
+        sentByOp.get(op).increment();
+        sentPerSecond.incrementAndGet(second(scheduledAt));
+        connection.send(new Request(op, scheduledAt), line);
+    }
+
+    private Op pick(Random random) {
+        int total = mix[0] + mix[1] + mix[2] + mix[3];
+        int r = random.nextInt(total);
+        for (int i = 0; i < mix.length; i++) {
+            if (r < mix[i]) return Op.values()[i];
+            r -= mix[i];
+        }
+        return Op.SUBMIT;
+    }
+
+    private void read(Connection connection) {
+        try {
+            String line;
+            while ((line = connection.in.readLine()) != null) {
+                // Lines without the STATUS prefix continue a multi-line listing.
+                if (!line.startsWith("STATUS;")) continue;
+                long now = System.nanoTime();
+                int sep = line.indexOf(';', 7);
+                String message = sep < 0 ? line : line.substring(sep + 1);
+
+                if (isEvent(message)) {
+                    // Every connection receives every broadcast; connection 0 accounts for them.
+                    // A replayed (cached) result is sent only to its requester.
+                    if (connection.index == 0 || message.contains("(cached result")) onEvent(message, now);
+                    continue;
+                }
+                Request request = connection.nextReply();
+                if (request == null) continue;
+                ackLatency.get(request.op).add(now - request.scheduledAt);
+                ackedPerSecond.incrementAndGet(second(now));
+
+                if (message.startsWith("REJECTED: ")) {
+                    rejections.computeIfAbsent(reasonOf(message.substring(10)), r -> new LongAdder()).increment();
+                } else if (request.op == Op.SUBMIT && message.startsWith("Task queued with ID ")) {
+                    onQueued(Integer.parseInt(message.substring(20).trim()), request.scheduledAt);
+                } else if (request.op == Op.CANCEL && message.endsWith("cancelled successfully")) {
+                    cancelled.increment();
+                    outstanding.remove(taskIdOf(message));
+                }
+            }
+        } catch (IOException e) {
+            // Socket closed at the end of the run.
+        }
+    }
+
+    private void onQueued(int taskId, long scheduledAt) {
+        if (outstanding.putIfAbsent(taskId, scheduledAt) != null) return;
+        Long executingAt = earlyExecuting.remove(taskId);
+        if (executingAt != null && executing.add(taskId)) queuedToExecuting.add(executingAt - scheduledAt);
+        Long finishedAt = earlyFinished.remove(taskId);
+        if (finishedAt != null) {
+            finish(taskId, Math.abs(finishedAt), finishedAt > 0);
+            return;
+        }
+        cancelCandidates.addLast(taskId);
+        while (cancelCandidates.size() > 1024) cancelCandidates.pollFirst();
+    }
+
+    private static boolean isEvent(String message) {
+        return message.startsWith("EXECUTING: TaskID ") || message.startsWith("COMPLETED: TaskID ")
+               || message.startsWith("ERROR: TaskID ") || message.startsWith("OUTPUT: TaskID ");
+    }
+
+    private void onEvent(String message, long now) {
+        int taskId = taskIdOf(message);
+        boolean succeeded = message.startsWith("COMPLETED");
+        if (message.startsWith("EXECUTING")) {
+            Long scheduledAt = outstanding.get(taskId);
+            if (scheduledAt == null) {
+                remember(earlyExecuting, taskId, now);
+            } else if (executing.add(taskId)) {
+                queuedToExecuting.add(now - scheduledAt);
+            }
+        } else if (succeeded || message.startsWith("ERROR")) {
+            if (outstanding.containsKey(taskId)) {
+                finish(taskId, now, succeeded);
+            } else {
+                remember(earlyFinished, taskId, succeeded ? now : -now);
+            }
+        }
+    }
+
+    private void finish(int taskId, long now, boolean succeeded) {
+        Long scheduledAt = outstanding.remove(taskId);
+        executing.remove(taskId);
+        if (scheduledAt == null) return;
+        queuedToCompleted.add(now - scheduledAt);
+        completedPerSecond.incrementAndGet(second(now));
+        if (succeeded) completed.increment();
+        else failed.increment();
+    }
+
+    // Events of other clients' tasks also land here; the map is simply reset if it grows large.
+    private static void remember(Map<Integer, Long> events, int taskId, long at) {
+        if (events.size() > 100_000) events.clear();
+        events.put(taskId, at);
+    }
+
+    // The number after "TaskID" (or "TaskID=") in an event or reply.
+    private static int taskIdOf(String message) {
+        int i = message.indexOf("TaskID") + 6;
+        while (i < message.length() && !Character.isDigit(message.charAt(i))) i++;
+        int j = i;
+        while (j < message.length() && Character.isDigit(message.charAt(j))) j++;
+        return j > i ? Integer.parseInt(message.substring(i, j)) : -1;
+    }
+
+    // Groups rejections by their text up to the first ':' or '(' with numbers masked.
+    private static String reasonOf(String reason) {
+        int cut = reason.length();
+        int colon = reason.indexOf(':');
+        int paren = reason.indexOf('(');
+        if (colon >= 0) cut = colon;
+        if (paren >= 0 && paren < cut) cut = paren;
+        return reason.substring(0, cut).replaceAll("\\d+", "N").trim();
+    }
+
+    private int second(long nanos) {
+        long s = TimeUnit.NANOSECONDS.toSeconds(nanos - startedAt);
+        return (int) Math.max(0, Math.min(sentPerSecond.length() - 1, s));
+    }
+
+    private static boolean anyPending(Connection[] connections) {
+        for (Connection connection : connections) {
+            if (connection.pending() > 0) return true;
+        }
+        return false;
+    }
+
+    private void report(Connection[] connections) {
+        long sent = 0;
+        for (LongAdder count : sentByOp.values()) sent += count.sum();
+        long unanswered = 0;
+        for (Connection connection : connections) unanswered += connection.pending();
+
+        System.out.println();
+        System.out.printf("=== Load test: %d connection(s), %.1f requests/s target, %d s ===%n",
+                          connectionCount, rate, durationSeconds);
+        System.out.printf("Sent %d requests (%.1f/s achieved), %d unanswered, max send lag %.3f ms%n",
+                          sent, sent / (double) durationSeconds, unanswered, maxLag.get() / 1e6);
+        System.out.printf("Tasks: %d completed, %d failed, %d cancelled, %d unfinished%n",
+                          completed.sum(), failed.sum(), cancelled.sum(), outstanding.size());
+        if (!rejections.isEmpty()) {
+            System.out.println("Rejections:");
+            new TreeMap<>(rejections).forEach((reason, count) -> System.out.printf("  %-50s %d%n", reason, count.sum()));
+        }
+
+        System.out.println();
+        System.out.printf("%-22s %8s %10s %10s %10s %10s %10s%n", "Latency (ms)", "count", "p50", "p90", "p99", "p999", "max");
+        for (Op op : Op.values()) {
+            printLatency("ack " + op.name(), ackLatency.get(op));
+        }
+        printLatency("queued->executing", queuedToExecuting);
+        printLatency("queued->completed", queuedToCompleted);
+
+        System.out.println();
+        System.out.printf("%-8s %10s %10s %10s%n", "second", "sent", "replies", "finished");
+        int last = sentPerSecond.length() - 1;
+        while (last > 0 && sentPerSecond.get(last) == 0 && ackedPerSecond.get(last) == 0 && completedPerSecond.get(last) == 0) {
+            last--;
+        }
+        for (int s = 0; s <= last; s++) {
+            System.out.printf("%-8d %10d %10d %10d%n", s, sentPerSecond.get(s), ackedPerSecond.get(s), completedPerSecond.get(s));
+        }
+    }
+
+    private static void printLatency(String name, Samples samples) {
+        long[] sorted = samples.sorted();
+        if (sorted.length == 0) {
+            System.out.printf("%-22s %8d%n", name, 0);
+            return;
+        }
+        System.out.printf("%-22s %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, sorted.length,
+                          percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                          percentile(sorted, 0.999), sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double q) {
+        int index = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+}
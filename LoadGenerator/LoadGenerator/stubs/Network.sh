@@ -0,0 +1,3 @@
+#!/bin/bash
+# Network.sh (stub) - Accepts every client so a load test can run on one box.
+exit 0
@@ -0,0 +1,5 @@
+#!/bin/bash
+# Stub task script for load tests: sleeps STUB_SLEEP seconds (default 0.05) and exits 0.
+sleep "${STUB_SLEEP:-0.05}"
+echo "$(basename "$0") stub done"
+exit 0
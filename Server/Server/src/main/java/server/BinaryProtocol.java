@@ -0,0 +1,123 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Length-prefixed binary framing, negotiated per connection by sending the text line
+// "PROTOCOL;BINARY". After the server's STATUS reply both directions switch to frames:
+//
+//   int length (of everything after this field), int requestId, byte opcode, payload
+//
+// Replies echo the requestId of the request they answer, so a client may pipeline any number of
+// requests; broadcast events use requestId 0. All integers are big-endian; short strings are
+// (unsigned short length, UTF-8 bytes) and long text is (int length, UTF-8 bytes). Timestamps are
+// epoch milliseconds.
+//
+// Requests:
+//   SUBMIT        short serviceNumber, int priority, str clientName, str userName (2005 only, else "")
+//                 [, long token]: a random non-zero value the client reuses when it resends the submit;
+//                 a resend within server.submit.tokenTtlMs is answered with the original TaskID
+//   QUEUE_STATUS  (empty), or int offset, int limit for one page of the listing
+//   CANCEL        int taskId
+//   HISTORY       str filters, e.g. "client=Client2;status=ERROR;limit=50" or ""
+//   TAIL          int taskId; answered by OK frames: the retained output, then one per new line
+//   METRICS       (empty)
+//   WATCH_QUEUE   (empty); answered by OK frames: the sorted pending tasks, then one per queue change
+//   CLUSTER_STATUS (empty)
+//   BATCH         str clientName, int priority, str nodes ("name=service[:user][@parent,...];..."), answered by OK
+//   BATCH_STATUS  int batchId
+//   SCHEDULE      short serviceNumber, str spec (interval or cron), int priority, str clientName ("" for
+//                 "scheduler"), str userName (2005 only, else ""); answered by OK
+//   UNSCHEDULE    int scheduleId
+//   LIST_SCHEDULES str filters, e.g. "client=Client1;after=12;limit=100" or ""
+//   COMMAND       str line: any text protocol command, answered with frames as if sent as a frame
+// Replies:
+//   QUEUED        long time, int taskId
+//   CANCELLED     long time, int taskId
+//   OK            long time, text message            (QUEUE_STATUS / TASK_HISTORY / METRICS listings)
+//   REJECTED      long time, text reason
+//   EVENT         long time, int taskId, byte status, str scriptName, str detail
+final class BinaryProtocol {
+    static final String NEGOTIATE = "PROTOCOL;BINARY";
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+    static final int FRAME_HEADER = 4 + 4 + 1;
+
+    static final byte SUBMIT = 0x01;
+    static final byte QUEUE_STATUS = 0x02;
+    static final byte CANCEL = 0x03;
+    static final byte HISTORY = 0x04;
+    static final byte TAIL = 0x05;
+    static final byte METRICS = 0x06;
+    static final byte WATCH_QUEUE = 0x07;
+    static final byte CLUSTER_STATUS = 0x08;
+    static final byte BATCH = 0x09;
+    static final byte BATCH_STATUS = 0x0A;
+    static final byte SCHEDULE = 0x0B;
+    static final byte UNSCHEDULE = 0x0C;
+    static final byte LIST_SCHEDULES = 0x0D;
+    static final byte COMMAND = 0x0E;
+
+    static final byte QUEUED = (byte) 0x81;
+    static final byte CANCELLED = (byte) 0x82;
+    static final byte OK = (byte) 0x83;
+    static final byte REJECTED = (byte) 0x84;
+    static final byte EVENT = (byte) 0x90;
+
+    static final byte STATUS_EXECUTING = 1;
+    static final byte STATUS_COMPLETED = 2;
+    static final byte STATUS_ERROR = 3;
+
+    private BinaryProtocol() {
+    }
+
+    static ByteBuffer taskReply(int requestId, byte opcode, long time, int taskId) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + 8 + 4);
+        frame.putInt(frame.capacity() - 4).putInt(requestId).put(opcode).putLong(time).putInt(taskId);
+        return frame.flip();
+    }
+
+    static ByteBuffer textReply(int requestId, byte opcode, long time, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + 8 + 4 + bytes.length);
+        frame.putInt(frame.capacity() - 4).putInt(requestId).put(opcode).putLong(time).putInt(bytes.length).put(bytes);
+        return frame.flip();
+    }
+
+    static ByteBuffer event(long time, int taskId, byte status, String scriptName, String detail) {
+        byte[] script = shortString(scriptName);
+        byte[] extra = shortString(detail);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + 8 + 4 + 1 + 2 + script.length + 2 + extra.length);
+        frame.putInt(frame.capacity() - 4).putInt(0).put(EVENT).putLong(time).putInt(taskId).put(status)
+             .putShort((short) script.length).put(script)
+             .putShort((short) extra.length).put(extra);
+        return frame.flip();
+    }
+
+    static byte statusCode(String status) {
+        switch (status) {
+            case "EXECUTING": return STATUS_EXECUTING;
+            case "COMPLETED": return STATUS_COMPLETED;
+            default:          return STATUS_ERROR;
+        }
+    }
+
+    static String readShortString(ByteBuffer frame) {
+        int length = frame.getShort() & 0xFFFF;
+        if (length == 0) return "";
+        String s;
+        if (frame.hasArray()) {
+            s = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+            frame.position(frame.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            frame.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static byte[] shortString(String s) {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= 0xFFFF ? bytes : java.util.Arrays.copyOf(bytes, 0xFFFF);
+    }
+}
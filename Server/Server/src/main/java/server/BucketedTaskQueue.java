@@ -0,0 +1,170 @@
+package server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Pending-task queue with one FIFO bucket per priority level (lower value first) and an index
+// from task id to its list node. Enqueue appends to the bucket's tail, cancel unlinks the node it
+// finds through the index, and dequeue scans the few distinct priorities for the first non-empty
+// bucket, so all three are O(1) in the number of queued tasks. Each bucket has its own lock,
+// so producers at different priorities never contend.
+class BucketedTaskQueue {
+    private static final class Node {
+        final Server.Task task;
+        final Bucket bucket;
+        Node prev;
+        Node next;
+        boolean linked;
+
+        Node(Server.Task task, Bucket bucket) {
+            this.task = task;
+            this.bucket = bucket;
+        }
+    }
+
+    private static final class Bucket {
+        final ReentrantLock lock = new ReentrantLock();
+        Node head;
+        Node tail;
+        volatile int count;
+    }
+
+    private final ConcurrentSkipListMap<Integer, Bucket> buckets = new ConcurrentSkipListMap<>();
+    private final Map<Integer, Node> index = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition notEmpty = waitLock.newCondition();
+
+    void offer(Server.Task task) {
+        Bucket bucket = buckets.computeIfAbsent(task.priority, p -> new Bucket());
+        Node node = new Node(task, bucket);
+        bucket.lock.lock();
+        try {
+            index.put(task.id, node);
+            node.prev = bucket.tail;
+            if (bucket.tail == null) bucket.head = node;
+            else bucket.tail.next = node;
+            bucket.tail = node;
+            node.linked = true;
+            bucket.count++;
+        } finally {
+            bucket.lock.unlock();
+        }
+        size.incrementAndGet();
+        if (waiters.get() > 0) {
+            waitLock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    // Removes and returns the oldest task of the highest priority, or null if the queue is empty.
+    Server.Task poll() {
+        for (Bucket bucket : buckets.values()) {
+            if (bucket.count == 0) continue;
+            bucket.lock.lock();
+            try {
+                Node node = bucket.head;
+                if (node != null) {
+                    unlink(node);
+                    return node.task;
+                }
+            } finally {
+                bucket.lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    Server.Task take() throws InterruptedException {
+        while (true) {
+            Server.Task task = poll();
+            if (task != null) return task;
+            waitLock.lock();
+            waiters.incrementAndGet();
+            try {
+                while (size.get() == 0) {
+                    notEmpty.await();
+                }
+            } finally {
+                waiters.decrementAndGet();
+                waitLock.unlock();
+            }
+        }
+    }
+
+    // Removes the task with the given id if it is still queued.
+    Server.Task remove(int taskId) {
+        Node node = index.get(taskId);
+        if (node == null) return null;
+        Bucket bucket = node.bucket;
+        bucket.lock.lock();
+        try {
+            if (!node.linked) return null;
+            unlink(node);
+            return node.task;
+        } finally {
+            bucket.lock.unlock();
+        }
+    }
+
+    Server.Task get(int taskId) {
+        Node node = index.get(taskId);
+        return node == null ? null : node.task;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    // Appends every queued task in dispatch order.
+    void snapshotTo(Collection<Server.Task> target) {
+        for (Bucket bucket : buckets.values()) {
+            if (bucket.count == 0) continue;
+            bucket.lock.lock();
+            try {
+                for (Node node = bucket.head; node != null; node = node.next) {
+                    target.add(node.task);
+                }
+            } finally {
+                bucket.lock.unlock();
+            }
+        }
+    }
+
+    // Puts the number of queued tasks at each non-empty priority.
+    void depthsTo(Map<Integer, Integer> target) {
+        for (Map.Entry<Integer, Bucket> entry : buckets.entrySet()) {
+            int count = entry.getValue().count;
+            if (count > 0) target.put(entry.getKey(), count);
+        }
+    }
+
+    // Called with the node's bucket lock held.
+    private void unlink(Node node) {
+        Bucket bucket = node.bucket;
+        if (node.prev == null) bucket.head = node.next;
+        else node.prev.next = node.next;
+        if (node.next == null) bucket.tail = node.prev;
+        else node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        node.linked = false;
+        bucket.count--;
+        index.remove(node.task.id, node);
+        size.decrementAndGet();
+    }
+}
@@ -0,0 +1,78 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.ToIntFunction;
+
+// Caches client validation results per source IP. Successful results are kept for ttlMillis and
+// failures for negativeTtlMillis; concurrent lookups for an IP that is not cached share a single
+// in-flight check, which always runs on the supplied executor rather than the caller's thread.
+class ClientValidator {
+    private static final int PRUNE_THRESHOLD = 10_000;
+
+    private final ToIntFunction<String> check;
+    private final Executor executor;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Integer>> inFlight = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final int result;
+        final long expiresAt;
+
+        Entry(int result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    ClientValidator(ToIntFunction<String> check, Executor executor, long ttlMillis, long negativeTtlMillis) {
+        this.check = check;
+        this.executor = executor;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    // Completes with the validation exit code for the address (0 means admitted).
+    CompletableFuture<Integer> validate(String address) {
+        Entry cached = cache.get(address);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            return CompletableFuture.completedFuture(cached.result);
+        }
+
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        CompletableFuture<Integer> existing = inFlight.putIfAbsent(address, future);
+        if (existing != null) return existing;
+
+        try {
+            executor.execute(() -> {
+                int result;
+                try {
+                    result = check.applyAsInt(address);
+                } catch (RuntimeException e) {
+                    result = -1;
+                }
+                store(address, result);
+                inFlight.remove(address, future);
+                future.complete(result);
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(address, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void store(String address, int result) {
+        long now = System.currentTimeMillis();
+        long ttl = result == 0 ? ttlMillis : negativeTtlMillis;
+        if (ttl <= 0) return;
+        if (cache.size() >= PRUNE_THRESHOLD) {
+            cache.values().removeIf(e -> e.expiresAt <= now);
+        }
+        cache.put(address, new Entry(result, now + ttl));
+    }
+}
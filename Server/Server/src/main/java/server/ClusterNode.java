@@ -0,0 +1,745 @@
+package server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Cluster mode. Every node is configured with the same member list,
+//   -Dserver.cluster.nodes=0@10.0.0.1:3500,1@10.0.0.2:3500,...   and its own -Dserver.cluster.nodeId,
+// and keeps one TCP link to every other live member; the node with the lower id dials. Links carry
+// length-prefixed messages (byte type, then fields written with DataOutputStream).
+//
+//   Membership  HELLO on connect, then a HEARTBEAT every heartbeatMillis with the node's pending
+//               and free-worker counts and the scripts it is running. A member not heard from for
+//               three heartbeats is dropped.
+//   Task ids    node n hands out ids k * MAX_NODES + n, so ids never collide (see Server.nextTaskId).
+//   Stealing    a node with idle workers and an empty queue takes up to half the backlog of the
+//               busiest member. Stolen tasks keep their id. The victim holds on to the tasks it
+//               sent until the thief has journaled them and answers TAKEN; only then does it
+//               record them as FORWARDED. If the link drops first, it queues them again, so a
+//               handoff cut off after the thief queued them can leave the task on both nodes.
+//   Exclusion   the live member with the lowest id holds the per-script leases. A node needs a
+//               lease for every script instance it runs, so quotas hold across the cluster. A
+//               denied node parks the task in its script lane and is sent FREE when a lease is
+//               returned; lanes are also retried every retryMillis in case a FREE was lost.
+//   Queries     QUEUE_STATUS and CANCEL_TASK fan out to all live members. Task events and history
+//               records are pushed to every member, so broadcasts and TASK_HISTORY cover the cluster.
+//
+// The lease table lives in the leader's memory. A new leader rebuilds it from the members' last
+// heartbeats, so leases granted just before a leader change can briefly be counted twice or not at
+// all. History received from peers is not journaled and is lost when this node restarts.
+class ClusterNode {
+    static final int MAX_NODES = 16;
+
+    // Local operations the cluster needs; implemented by Server.
+    interface Host {
+        int pendingCount();
+
+        int freeWorkers();
+
+        Map<String, Integer> runningScripts();
+
+        // Removes up to max queued tasks so another node can run them. The node then either
+        // confirms the handoff with forwarded or returns the tasks with takeBack.
+        List<Server.Task> giveTasks(int max, int toNode);
+
+        void forwarded(List<Server.Task> tasks, int toNode);
+
+        void takeBack(List<Server.Task> tasks, int toNode);
+
+        void acceptTasks(List<Server.Task> tasks, int fromNode);
+
+        boolean cancelLocal(int taskId);
+
+        // The first limit pending tasks in QUEUE_STATUS order.
+        List<Server.Task> pendingTasks(int limit);
+
+        void onEvent(int taskId, String scriptName, String status, String detail, String message);
+
+        void onHistory(int taskId, String scriptName, String clientName, String status, long time);
+
+        // Moves tasks parked behind the script (all scripts if null) back to the queue.
+        void retryParked(String script);
+    }
+
+    private static final byte HELLO = 1;
+    private static final byte HEARTBEAT = 2;
+    private static final byte STEAL = 3;
+    private static final byte CANCEL = 4;
+    private static final byte QUEUE = 5;
+    private static final byte LEASE = 6;
+    private static final byte UNLEASE = 7;
+    private static final byte FREE = 8;
+    private static final byte EVENT = 9;
+    private static final byte HISTORY = 10;
+    private static final byte REPLY = 11;
+    private static final byte TAKEN = 12;
+
+    private static final int MAX_MESSAGE_LENGTH = 16 << 20;
+    private static final int OUTBOUND_CAPACITY = 4096;
+
+    private final class Peer {
+        final int id;
+        final Socket socket;
+        final DataOutputStream out;
+        final BlockingQueue<byte[]> outbound = new ArrayBlockingQueue<>(OUTBOUND_CAPACITY);
+        // Outstanding calls to this peer by call id; failed when the link drops.
+        final Map<Integer, CompletableFuture<DataInputStream>> calls = new ConcurrentHashMap<>();
+        // Tasks given to this peer by STEAL call id, until it answers TAKEN; taken back when the link drops.
+        final Map<Integer, List<Server.Task>> handoffs = new ConcurrentHashMap<>();
+        volatile boolean closed;
+        volatile long lastHeard = System.currentTimeMillis();
+        volatile int pending;
+        volatile int freeWorkers;
+        volatile Map<String, Integer> running = Collections.emptyMap();
+
+        Peer(int id, Socket socket) throws IOException {
+            this.id = id;
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+        }
+
+        boolean send(byte[] message) {
+            if (closed) return false;
+            if (outbound.offer(message)) return true;
+            log("Link to node " + id + " is not draining; closing it");
+            close();
+            return false;
+        }
+
+        void drain() {
+            List<byte[]> batch = new ArrayList<>();
+            try {
+                while (!closed) {
+                    byte[] first = outbound.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    outbound.drainTo(batch);
+                    for (byte[] message : batch) {
+                        out.writeInt(message.length);
+                        out.write(message);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The reader sees the broken link as well and drops the peer.
+            }
+            close();
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final int nodeId;
+    private final Map<Integer, InetSocketAddress> members;
+    private final Host host;
+    private final long heartbeatMillis;
+    private final long requestTimeoutMillis;
+    private final long retryMillis;
+    private final Map<Integer, Peer> peers = new ConcurrentHashMap<>();
+    private final Set<Integer> dialing = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nextCallId = new AtomicInteger();
+    private final AtomicBoolean stealing = new AtomicBoolean();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cluster-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    // Leader state: leases granted per script and node, and the nodes waiting for each script.
+    private final ReentrantLock leaseLock = new ReentrantLock();
+    private final Map<String, Map<Integer, Integer>> leases = new HashMap<>();
+    private final Map<String, Set<Integer>> leaseWaiters = new HashMap<>();
+    private volatile int leader;
+    private long lastRetry;
+
+    ClusterNode(int nodeId, Map<Integer, InetSocketAddress> members, Host host,
+                long heartbeatMillis, long requestTimeoutMillis, long retryMillis) {
+        this.nodeId = nodeId;
+        this.members = members;
+        this.host = host;
+        this.heartbeatMillis = heartbeatMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.retryMillis = retryMillis;
+        this.leader = nodeId;
+    }
+
+    // Parses "id@host:port,id@host:port,..."; ids must be in [0, MAX_NODES).
+    static Map<Integer, InetSocketAddress> parseMembers(String spec) {
+        Map<Integer, InetSocketAddress> members = new TreeMap<>();
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int at = entry.indexOf('@');
+            int colon = entry.lastIndexOf(':');
+            if (at <= 0 || colon < at) throw new IllegalArgumentException("Invalid cluster member: " + entry);
+            int id = Integer.parseInt(entry.substring(0, at));
+            if (id < 0 || id >= MAX_NODES) throw new IllegalArgumentException("Cluster node ids must be 0-" + (MAX_NODES - 1) + ": " + entry);
+            members.put(id, new InetSocketAddress(entry.substring(at + 1, colon), Integer.parseInt(entry.substring(colon + 1))));
+        }
+        return members;
+    }
+
+    void start() throws IOException {
+        InetSocketAddress self = members.get(nodeId);
+        if (self == null) throw new IllegalArgumentException("Node " + nodeId + " is not in the cluster member list");
+        ServerSocket listener = new ServerSocket(self.getPort(), 50, InetAddress.getByName("0.0.0.0"));
+        listener.setReuseAddress(true);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = listener.accept();
+                    new Thread(() -> accept(socket), "cluster-accept").start();
+                } catch (IOException e) {
+                    log("Cluster listener error: " + e.getMessage());
+                }
+            }
+        }, "cluster-listener");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        timer.scheduleWithFixedDelay(this::tick, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+        log("Cluster node " + nodeId + " listening on port " + self.getPort() + " (" + members.size() + " member(s))");
+    }
+
+    // Members currently linked, plus this node.
+    String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Cluster (node ").append(nodeId).append(", leader ").append(leader).append("):");
+        for (Map.Entry<Integer, InetSocketAddress> member : members.entrySet()) {
+            int id = member.getKey();
+            sb.append("\nNode ").append(id).append(" ").append(member.getValue().getHostString())
+              .append(":").append(member.getValue().getPort());
+            if (id == nodeId) {
+                sb.append(" (this node) pending=").append(host.pendingCount()).append(" freeWorkers=").append(host.freeWorkers());
+                continue;
+            }
+            Peer peer = peers.get(id);
+            if (peer == null) sb.append(" DOWN");
+            else sb.append(" UP pending=").append(peer.pending).append(" freeWorkers=").append(peer.freeWorkers);
+        }
+        return sb.toString();
+    }
+
+    // Task events and history records are pushed to every live member.
+    void publishEvent(int taskId, String scriptName, String status, String detail, String message) {
+        sendToAll(message(EVENT, out -> {
+            out.writeInt(taskId);
+            out.writeUTF(scriptName);
+            out.writeUTF(status);
+            out.writeUTF(detail);
+            out.writeUTF(message);
+        }));
+    }
+
+    void publishHistory(int taskId, String scriptName, String clientName, String status, long time) {
+        sendToAll(message(HISTORY, out -> {
+            out.writeInt(taskId);
+            out.writeUTF(scriptName);
+            out.writeUTF(clientName);
+            out.writeUTF(status);
+            out.writeLong(time);
+        }));
+    }
+
+    // Completes with the first limit pending tasks of every member that answered in time (unsorted
+    // across members); members that did not answer are listed in missing.
+    CompletableFuture<List<Server.Task>> remotePendingTasks(int limit, Set<Integer> missing) {
+        List<CompletableFuture<List<Server.Task>>> replies = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            replies.add(call(peer, QUEUE, out -> out.writeInt(limit), true)
+                    .thenApply(ClusterNode::readTasks)
+                    .exceptionally(error -> {
+                        missing.add(peer.id);
+                        return Collections.emptyList();
+                    }));
+        }
+        return CompletableFuture.allOf(replies.toArray(CompletableFuture<?>[]::new)).thenApply(done -> {
+            List<Server.Task> tasks = new ArrayList<>();
+            for (CompletableFuture<List<Server.Task>> reply : replies) {
+                tasks.addAll(reply.join());
+            }
+            return tasks;
+        });
+    }
+
+    // Completes with true if some member cancelled the task.
+    CompletableFuture<Boolean> cancelRemote(int taskId) {
+        List<CompletableFuture<Boolean>> replies = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            replies.add(call(peer, CANCEL, out -> out.writeInt(taskId), true)
+                    .thenApply(in -> readBoolean(in))
+                    .exceptionally(error -> false));
+        }
+        return CompletableFuture.allOf(replies.toArray(CompletableFuture<?>[]::new))
+                .thenApply(done -> replies.stream().anyMatch(CompletableFuture::join));
+    }
+
+    // Asks the leader for one instance of the script. Completes with false if the leader denies it or
+    // does not answer within the request timeout; on the leader itself it is already complete.
+    CompletableFuture<Boolean> requestLease(String script, int quota) {
+        int current = leader;
+        if (current == nodeId) return CompletableFuture.completedFuture(grant(nodeId, script, quota));
+        Peer peer = peers.get(current);
+        if (peer == null) return CompletableFuture.completedFuture(false);
+        return call(peer, LEASE, out -> {
+            out.writeUTF(script);
+            out.writeInt(quota);
+        }, true).thenApply(ClusterNode::readBoolean).exceptionally(error -> false);
+    }
+
+    void releaseLease(String script) {
+        int current = leader;
+        if (current == nodeId) {
+            ungrant(nodeId, script);
+            return;
+        }
+        Peer peer = peers.get(current);
+        if (peer != null) peer.send(message(UNLEASE, out -> out.writeUTF(script)));
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Integer, InetSocketAddress> member : members.entrySet()) {
+                int id = member.getKey();
+                if (id > nodeId && !peers.containsKey(id) && dialing.add(id)) {
+                    new Thread(() -> dial(id, member.getValue()), "cluster-dial-" + id).start();
+                }
+            }
+            for (Peer peer : peers.values()) {
+                if (now - peer.lastHeard > 3 * heartbeatMillis) {
+                    log("Node " + peer.id + " missed its heartbeats; dropping it");
+                    peer.close();
+                }
+            }
+            Map<String, Integer> running = host.runningScripts();
+            int pending = host.pendingCount();
+            int free = host.freeWorkers();
+            sendToAll(message(HEARTBEAT, out -> {
+                out.writeInt(pending);
+                out.writeInt(free);
+                writeCounts(out, running);
+            }));
+            updateLeader();
+            if (now - lastRetry >= retryMillis) {
+                lastRetry = now;
+                host.retryParked(null);
+            }
+            if (pending == 0 && free > 0) steal(free);
+        } catch (RuntimeException e) {
+            log("Cluster timer error: " + e);
+        }
+    }
+
+    private void steal(int free) {
+        Peer victim = null;
+        for (Peer peer : peers.values()) {
+            int backlog = peer.pending - peer.freeWorkers;
+            if (backlog > 0 && (victim == null || backlog > victim.pending - victim.freeWorkers)) victim = peer;
+        }
+        if (victim == null || !stealing.compareAndSet(false, true)) return;
+        int count = Math.min(free, (victim.pending - victim.freeWorkers + 1) / 2);
+        int from = victim.id;
+        Peer peer = victim;
+        // No timeout: the victim has already dequeued what it sends, so a late reply must still be accepted.
+        call(victim, STEAL, out -> out.writeInt(count), false).whenComplete((in, error) -> {
+            stealing.set(false);
+            if (error != null) {
+                // The victim keeps the tasks it could not hand over.
+                log("Stealing from node " + from + " failed: " + error.getMessage());
+                return;
+            }
+            int handoff = readInt(in);
+            List<Server.Task> tasks = readTasks(in);
+            if (tasks.isEmpty()) return;
+            host.acceptTasks(tasks, from);
+            peer.send(message(TAKEN, out -> out.writeInt(handoff)));
+        });
+    }
+
+    // The leader is the live member with the lowest id. A node that becomes leader rebuilds the
+    // lease table from its own running scripts and the members' last heartbeats.
+    private void updateLeader() {
+        int elected = nodeId;
+        for (int id : peers.keySet()) {
+            elected = Math.min(elected, id);
+        }
+        if (elected == leader) return;
+        int previous = leader;
+        leader = elected;
+        log("Cluster leader is now node " + elected + " (was " + previous + ")");
+        if (elected == nodeId) {
+            leaseLock.lock();
+            try {
+                leases.clear();
+                leaseWaiters.clear();
+                seed(nodeId, host.runningScripts());
+                for (Peer peer : peers.values()) {
+                    seed(peer.id, peer.running);
+                }
+            } finally {
+                leaseLock.unlock();
+            }
+        }
+        host.retryParked(null);
+    }
+
+    // Called with leaseLock held.
+    private void seed(int node, Map<String, Integer> running) {
+        for (Map.Entry<String, Integer> entry : running.entrySet()) {
+            leases.computeIfAbsent(entry.getKey(), s -> new HashMap<>()).put(node, entry.getValue());
+        }
+    }
+
+    private boolean grant(int node, String script, int quota) {
+        leaseLock.lock();
+        try {
+            Map<Integer, Integer> holders = leases.computeIfAbsent(script, s -> new HashMap<>());
+            int total = 0;
+            for (int count : holders.values()) {
+                total += count;
+            }
+            if (total < quota) {
+                holders.merge(node, 1, Integer::sum);
+                return true;
+            }
+            leaseWaiters.computeIfAbsent(script, s -> new HashSet<>()).add(node);
+            return false;
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    private void ungrant(int node, String script) {
+        Set<Integer> waiting;
+        leaseLock.lock();
+        try {
+            Map<Integer, Integer> holders = leases.get(script);
+            if (holders != null) {
+                holders.computeIfPresent(node, (n, count) -> count > 1 ? count - 1 : null);
+                if (holders.isEmpty()) leases.remove(script);
+            }
+            waiting = leaseWaiters.remove(script);
+        } finally {
+            leaseLock.unlock();
+        }
+        if (waiting != null) notifyFree(script, waiting);
+    }
+
+    // Drops the leases of a node that left and wakes the nodes waiting for them.
+    private void dropLeases(int node) {
+        Map<String, Set<Integer>> freed = new HashMap<>();
+        leaseLock.lock();
+        try {
+            for (Iterator<Map.Entry<String, Map<Integer, Integer>>> it = leases.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Map<Integer, Integer>> entry = it.next();
+                if (entry.getValue().remove(node) == null) continue;
+                if (entry.getValue().isEmpty()) it.remove();
+                Set<Integer> waiting = leaseWaiters.remove(entry.getKey());
+                if (waiting != null) freed.put(entry.getKey(), waiting);
+            }
+        } finally {
+            leaseLock.unlock();
+        }
+        freed.forEach(this::notifyFree);
+    }
+
+    private void notifyFree(String script, Set<Integer> nodes) {
+        byte[] free = message(FREE, out -> out.writeUTF(script));
+        for (int node : nodes) {
+            if (node == nodeId) {
+                host.retryParked(script);
+            } else {
+                Peer peer = peers.get(node);
+                if (peer != null) peer.send(free);
+            }
+        }
+    }
+
+    private void dial(int id, InetSocketAddress address) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, (int) requestTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeInt(5);
+            out.writeByte(HELLO);
+            out.writeInt(nodeId);
+            out.flush();
+            if (readHello(in) != id) throw new IOException("unexpected node id");
+            dialing.remove(id);
+            run(new Peer(id, socket), in);
+        } catch (IOException e) {
+            dialing.remove(id);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            socket.setSoTimeout((int) requestTimeoutMillis);
+            int id = readHello(in);
+            socket.setSoTimeout(0);
+            if (id >= nodeId || !members.containsKey(id)) {
+                log("Rejected cluster link from unexpected node " + id + " (" + socket.getInetAddress().getHostAddress() + ")");
+                socket.close();
+                return;
+            }
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(5);
+            out.writeByte(HELLO);
+            out.writeInt(nodeId);
+            out.flush();
+            run(new Peer(id, socket), in);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static int readHello(DataInputStream in) throws IOException {
+        if (in.readInt() != 5 || in.readByte() != HELLO) throw new IOException("expected HELLO");
+        return in.readInt();
+    }
+
+    // Owns the peer's link until it drops: starts its writer and dispatches incoming messages.
+    private void run(Peer peer, DataInputStream in) {
+        Peer previous = peers.put(peer.id, peer);
+        if (previous != null) previous.close();
+        log("Node " + peer.id + " joined the cluster");
+        Thread writer = new Thread(peer::drain, "cluster-writer-" + peer.id);
+        writer.setDaemon(true);
+        writer.start();
+        try {
+            while (!peer.closed) {
+                int length = in.readInt();
+                if (length < 1 || length > MAX_MESSAGE_LENGTH) throw new IOException("invalid message length " + length);
+                byte[] body = new byte[length];
+                in.readFully(body);
+                peer.lastHeard = System.currentTimeMillis();
+                handle(peer, new DataInputStream(new ByteArrayInputStream(body)));
+            }
+        } catch (IOException e) {
+            // Link dropped
+        } finally {
+            peer.close();
+            writer.interrupt();
+            for (Integer handoff : peer.handoffs.keySet()) {
+                List<Server.Task> tasks = peer.handoffs.remove(handoff);
+                if (tasks != null) host.takeBack(tasks, peer.id);
+            }
+            if (peers.remove(peer.id, peer)) {
+                log("Node " + peer.id + " left the cluster");
+                IOException lost = new IOException("Node " + peer.id + " left the cluster");
+                for (CompletableFuture<DataInputStream> pending : peer.calls.values()) {
+                    pending.completeExceptionally(lost);
+                }
+                if (leader == nodeId) dropLeases(peer.id);
+                timer.execute(this::updateLeader);
+            }
+        }
+    }
+
+    private void handle(Peer peer, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case HEARTBEAT:
+                peer.pending = in.readInt();
+                peer.freeWorkers = in.readInt();
+                peer.running = readCounts(in);
+                break;
+            case EVENT:
+                host.onEvent(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+                break;
+            case HISTORY:
+                host.onHistory(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF(), in.readLong());
+                break;
+            case STEAL: {
+                int callId = in.readInt();
+                List<Server.Task> tasks = host.giveTasks(in.readInt(), peer.id);
+                if (!tasks.isEmpty()) peer.handoffs.put(callId, tasks);
+                if (!peer.send(reply(callId, out -> {
+                    out.writeInt(callId);
+                    writeTasks(out, tasks);
+                })) && peer.handoffs.remove(callId) != null) {
+                    host.takeBack(tasks, peer.id);
+                }
+                break;
+            }
+            case TAKEN: {
+                List<Server.Task> tasks = peer.handoffs.remove(in.readInt());
+                if (tasks != null) host.forwarded(tasks, peer.id);
+                break;
+            }
+            case QUEUE: {
+                int callId = in.readInt();
+                List<Server.Task> tasks = host.pendingTasks(in.readInt());
+                peer.send(reply(callId, out -> writeTasks(out, tasks)));
+                break;
+            }
+            case CANCEL: {
+                int callId = in.readInt();
+                boolean cancelled = host.cancelLocal(in.readInt());
+                peer.send(reply(callId, out -> out.writeBoolean(cancelled)));
+                break;
+            }
+            case LEASE: {
+                int callId = in.readInt();
+                String script = in.readUTF();
+                // Only the leader grants; a stale request is denied and retried later.
+                boolean granted = leader == nodeId && grant(peer.id, script, in.readInt());
+                peer.send(reply(callId, out -> out.writeBoolean(granted)));
+                break;
+            }
+            case UNLEASE:
+                ungrant(peer.id, in.readUTF());
+                break;
+            case FREE:
+                host.retryParked(in.readUTF());
+                break;
+            case REPLY: {
+                CompletableFuture<DataInputStream> pending = peer.calls.remove(in.readInt());
+                if (pending != null) pending.complete(in);
+                break;
+            }
+            default:
+                throw new IOException("unknown message type " + type);
+        }
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private CompletableFuture<DataInputStream> call(Peer peer, byte type, Writer body, boolean timeout) {
+        int callId = nextCallId.incrementAndGet();
+        CompletableFuture<DataInputStream> reply = new CompletableFuture<>();
+        peer.calls.put(callId, reply);
+        if (!peer.send(message(type, out -> {
+            out.writeInt(callId);
+            body.write(out);
+        }))) {
+            peer.calls.remove(callId);
+            reply.completeExceptionally(new IOException("Node " + peer.id + " is not reachable"));
+            return reply;
+        }
+        if (!timeout) return reply;
+        return reply.orTimeout(requestTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .whenComplete((in, error) -> peer.calls.remove(callId));
+    }
+
+    private void sendToAll(byte[] message) {
+        for (Peer peer : peers.values()) {
+            peer.send(message);
+        }
+    }
+
+    private static byte[] reply(int callId, Writer body) {
+        return message(REPLY, out -> {
+            out.writeInt(callId);
+            body.write(out);
+        });
+    }
+
+    private static byte[] message(byte type, Writer body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            body.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeTasks(DataOutputStream out, List<Server.Task> tasks) throws IOException {
+        out.writeInt(tasks.size());
+        for (Server.Task task : tasks) {
+            out.writeInt(task.id);
+            out.writeInt(task.serviceNumber);
+            out.writeInt(task.priority);
+            out.writeLong(task.timestamp);
+            out.writeUTF(task.clientName);
+            out.writeUTF(task.scriptName);
+        }
+    }
+
+    private static List<Server.Task> readTasks(DataInputStream in) {
+        try {
+            int count = in.readInt();
+            List<Server.Task> tasks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                int serviceNumber = in.readInt();
+                int priority = in.readInt();
+                long timestamp = in.readLong();
+                tasks.add(new Server.Task(id, serviceNumber, in.readUTF(), priority, in.readUTF(), timestamp));
+            }
+            return tasks;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int readInt(DataInputStream in) {
+        try {
+            return in.readInt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean readBoolean(DataInputStream in) {
+        try {
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeCounts(DataOutputStream out, Map<String, Integer> counts) throws IOException {
+        out.writeInt(counts.size());
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    private static Map<String, Integer> readCounts(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            counts.put(in.readUTF(), in.readInt());
+        }
+        return counts;
+    }
+
+    private static void log(String message) {
+        ServerLog.info("CLUSTER", message);
+    }
+}
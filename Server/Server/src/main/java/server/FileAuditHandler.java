@@ -0,0 +1,99 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// In-JVM replacement for file_audit.sh (service 2004, -Dserver.handler.2004=native). The script
+// never finishes: it keeps inotifywait running and holds a worker for good. The handler instead
+// compares the files under server.audit.dir (/projects/development) with what the previous run saw
+// and reports each created, modified or deleted file in the script's line format, so the service
+// can be run periodically, e.g. with SCHEDULE. The first run only records the baseline. With
+// server.audit.log set, the lines are also appended to that file.
+class FileAuditHandler implements TaskHandler {
+    private final Path root = Paths.get(System.getProperty("server.audit.dir", "/projects/development"));
+    private final String auditLog = System.getProperty("server.audit.log");
+    private final String user = System.getProperty("user.name");
+    // Runs one audit at a time; a lock rather than a monitor, so a waiting virtual thread unmounts.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Size and modification time of every file seen by the previous run; null before the first.
+    private Map<Path, long[]> previous;
+
+    @Override
+    public int run(int taskId, String scriptName, Consumer<String> output) throws IOException {
+        lock.lock();
+        try {
+            return audit(output);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int audit(Consumer<String> output) throws IOException {
+        if (!Files.isDirectory(root)) {
+            output.accept("Audit directory " + root + " does not exist");
+            return 1;
+        }
+        Map<Path, long[]> current = snapshot();
+        if (previous == null) {
+            previous = current;
+            output.accept("Recorded baseline of " + current.size() + " files under " + root);
+            return 0;
+        }
+
+        String time = Server.getCurrentTimestamp();
+        List<String> events = new ArrayList<>();
+        for (Map.Entry<Path, long[]> file : current.entrySet()) {
+            long[] before = previous.get(file.getKey());
+            if (before == null) {
+                events.add(line(file.getKey(), "CREATE", time));
+            } else if (before[0] != file.getValue()[0] || before[1] != file.getValue()[1]) {
+                events.add(line(file.getKey(), "MODIFY", time));
+            }
+        }
+        for (Path file : previous.keySet()) {
+            if (!current.containsKey(file)) events.add(line(file, "DELETE", time));
+        }
+        previous = current;
+
+        if (auditLog != null && !auditLog.isEmpty() && !events.isEmpty()) {
+            Files.write(Paths.get(auditLog), events, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        events.forEach(output);
+        output.accept(events.size() + " changes under " + root);
+        return 0;
+    }
+
+    private Map<Path, long[]> snapshot() throws IOException {
+        Map<Path, long[]> files = new HashMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.put(file, new long[] {attrs.size(), attrs.lastModifiedTime().toMillis()});
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE; // removed or unreadable meanwhile
+            }
+        });
+        return files;
+    }
+
+    private String line(Path file, String event, String time) {
+        return "User: " + user + " | File: " + file + " | Event: " + event + " | Time: " + time;
+    }
+}
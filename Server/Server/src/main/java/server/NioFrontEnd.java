@@ -0,0 +1,420 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Selector based front end: a few acceptor threads hand sockets round-robin to a fixed set of
+// reactor threads, each of which multiplexes thousands of non-blocking channels. Connections keep
+// no buffers while idle; partial lines and unsent output are allocated only when actually needed.
+class NioFrontEnd {
+    interface Handler {
+        void onOpen(Connection connection);
+
+        void onLine(Connection connection, String line);
+
+        // Called for each complete frame once the connection has switched to binary framing. The
+        // buffer (positioned just after the length prefix) is reused once the call returns.
+        void onFrame(Connection connection, ByteBuffer frame);
+
+        void onClose(Connection connection);
+    }
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_GATHER = 64;
+
+    private final InetSocketAddress address;
+    private final int backlog;
+    private final int acceptorCount;
+    private final Reactor[] reactors;
+    private final Handler handler;
+    private final int maxPendingBytes;
+    private final boolean dropOnOverflow;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+
+    // maxPendingBytes bounds each connection's unsent output; beyond it new messages are either
+    // dropped or the connection is closed, depending on dropOnOverflow.
+    NioFrontEnd(InetSocketAddress address, int backlog, int acceptorCount, int reactorCount, Handler handler,
+                int maxPendingBytes, boolean dropOnOverflow) throws IOException {
+        this.address = address;
+        this.maxPendingBytes = maxPendingBytes;
+        this.dropOnOverflow = dropOnOverflow;
+        this.backlog = backlog;
+        this.acceptorCount = Math.max(1, acceptorCount);
+        this.handler = handler;
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+        }
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, backlog);
+
+        for (int i = 0; i < reactors.length; i++) {
+            new Thread(reactors[i], "nio-reactor-" + i).start();
+        }
+        for (int i = 0; i < acceptorCount; i++) {
+            new Thread(this::acceptLoop, "nio-acceptor-" + i).start();
+        }
+    }
+
+    void stop() {
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (Reactor reactor : reactors) {
+            reactor.shutdown();
+        }
+    }
+
+    private void acceptLoop() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)].register(channel);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                ServerLog.warn(null, "Accept error: " + e.getMessage());
+            }
+        }
+    }
+
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private volatile boolean running = true;
+
+        Reactor() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                Connection connection = new Connection(this, channel);
+                try {
+                    connection.key = channel.register(selector, 0, connection);
+                } catch (ClosedChannelException e) {
+                    return;
+                }
+                handler.onOpen(connection);
+            });
+        }
+
+        void execute(Runnable task) {
+            pending.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = pending.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    ServerLog.warn(null, "Reactor error: " + e.getMessage());
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    final class Connection implements Server.ClientConnection {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private SelectionKey key;
+        private volatile Object attachment;
+
+        // Only touched by the owning reactor thread.
+        private byte[] lineBuffer;
+        private int lineLength;
+        private ByteBuffer frameBuffer;
+        private volatile boolean binary;
+
+        // Guarded by this.
+        private ArrayDeque<ByteBuffer> outbound;
+        private ByteBuffer[] gather;
+        // Guards outbound, gather and pendingBytes. A lock rather than a monitor, so a virtual
+        // thread sending to this connection does not pin its carrier while it waits.
+        private final ReentrantLock writeLock = new ReentrantLock();
+        // Orders the protocol switch against sendEither; taken before writeLock.
+        private final ReentrantLock modeLock = new ReentrantLock();
+        private int pendingBytes;
+        private int dropped;
+
+        private Connection(Reactor reactor, SocketChannel channel) {
+            this.reactor = reactor;
+            this.channel = channel;
+            String address;
+            try {
+                address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            } catch (IOException e) {
+                address = "unknown";
+            }
+            this.remoteAddress = address;
+        }
+
+        public String remoteAddress() {
+            return remoteAddress;
+        }
+
+        void attach(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        Object attachment() {
+            return attachment;
+        }
+
+        void enableReads() {
+            reactor.execute(() -> {
+                if (key.isValid()) key.interestOpsOr(SelectionKey.OP_READ);
+            });
+        }
+
+        public boolean isBinary() {
+            return binary;
+        }
+
+        // Must be called on the reactor thread (i.e. from a Handler callback).
+        public void switchToBinary(String reply) {
+            modeLock.lock();
+            try {
+                send(reply);
+                binary = true;
+            } finally {
+                modeLock.unlock();
+            }
+        }
+
+        public boolean sendEither(String line, ByteBuffer frame) {
+            modeLock.lock();
+            try {
+                return binary ? enqueue(frame) : send(line);
+            } finally {
+                modeLock.unlock();
+            }
+        }
+
+        public boolean send(String line) {
+            return enqueue(StandardCharsets.UTF_8.encode(line + "\n"));
+        }
+
+        public boolean sendFrame(ByteBuffer frame) {
+            return enqueue(frame);
+        }
+
+        private boolean enqueue(ByteBuffer data) {
+            if (closed.get()) return false;
+            writeLock.lock();
+            try {
+                try {
+                    if (outbound == null || outbound.isEmpty()) {
+                        channel.write(data);
+                        if (!data.hasRemaining()) return true;
+                    }
+                } catch (IOException e) {
+                    close();
+                    return false;
+                }
+                if (pendingBytes + data.remaining() > maxPendingBytes) {
+                    if (dropOnOverflow) {
+                        if (++dropped == 1 || dropped % 1000 == 0) {
+                            ServerLog.warn("SLOW CLIENT", remoteAddress, "Dropped", dropped + " message(s), outbound buffer full");
+                        }
+                        return true;
+                    }
+                    ServerLog.warn("SLOW CLIENT", "Disconnecting " + remoteAddress + ": more than " + maxPendingBytes + " bytes unsent");
+                    close();
+                    return false;
+                }
+                if (outbound == null) outbound = new ArrayDeque<>(4);
+                outbound.add(data);
+                pendingBytes += data.remaining();
+            } finally {
+                writeLock.unlock();
+            }
+            try {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException e) {
+                return false;
+            }
+            reactor.selector.wakeup();
+            return true;
+        }
+
+        private void read(ByteBuffer buffer) {
+            int n;
+            buffer.clear();
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                if (binary) {
+                    readFrames(buffer);
+                    return;
+                }
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int end = lineLength;
+                    if (end > 0 && lineBuffer[end - 1] == '\r') end--;
+                    String line = lineBuffer == null ? "" : new String(lineBuffer, 0, end, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    if (lineBuffer != null && lineBuffer.length > 1024) lineBuffer = null;
+                    handler.onLine(this, line);
+                    if (closed.get()) return;
+                } else {
+                    appendToLine(b);
+                    if (closed.get()) return;
+                }
+            }
+        }
+
+        // Accumulates bytes in a per-connection heap buffer and dispatches every complete frame.
+        private void readFrames(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                if (frameBuffer == null) frameBuffer = ByteBuffer.allocate(256);
+                int needed = 4;
+                if (frameBuffer.position() >= 4) {
+                    int length = frameBuffer.getInt(0);
+                    if (length < BinaryProtocol.FRAME_HEADER - 4 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                        ServerLog.warn(null, "Closing " + remoteAddress + ": invalid frame length " + length);
+                        close();
+                        return;
+                    }
+                    needed += length;
+                }
+                if (needed > frameBuffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(needed);
+                    frameBuffer.flip();
+                    larger.put(frameBuffer);
+                    frameBuffer = larger;
+                }
+                int n = Math.min(needed - frameBuffer.position(), buffer.remaining());
+                ByteBuffer chunk = buffer.slice();
+                chunk.limit(n);
+                frameBuffer.put(chunk);
+                buffer.position(buffer.position() + n);
+                if (frameBuffer.position() == needed && needed > 4) {
+                    ByteBuffer frame = frameBuffer.duplicate();
+                    frame.position(4).limit(needed);
+                    handler.onFrame(this, frame);
+                    if (closed.get()) return;
+                    if (frameBuffer.capacity() > 4096) frameBuffer = null;
+                    else frameBuffer.clear();
+                }
+            }
+        }
+
+        private void appendToLine(byte b) {
+            if (lineBuffer == null) {
+                lineBuffer = new byte[256];
+            } else if (lineLength == lineBuffer.length) {
+                if (lineLength >= MAX_LINE_LENGTH) {
+                    ServerLog.warn(null, "Closing " + remoteAddress + ": request line exceeds " + MAX_LINE_LENGTH + " bytes");
+                    close();
+                    return;
+                }
+                lineBuffer = Arrays.copyOf(lineBuffer, lineLength * 2);
+            }
+            lineBuffer[lineLength++] = b;
+        }
+
+        // Writes everything queued since the last flush with gathering writes of up to MAX_GATHER buffers.
+        private void flush() {
+            writeLock.lock();
+            try {
+                flushLocked();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void flushLocked() {
+            try {
+                if (gather == null && outbound != null) gather = new ByteBuffer[MAX_GATHER];
+                while (outbound != null && !outbound.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer buffer : outbound) {
+                        gather[count++] = buffer;
+                        if (count == MAX_GATHER) break;
+                    }
+                    pendingBytes -= (int) channel.write(gather, 0, count);
+                    while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                        outbound.poll();
+                    }
+                    if (!outbound.isEmpty() && gather[count - 1].hasRemaining()) return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            outbound = null;
+            gather = null;
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+        }
+
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            handler.onClose(this);
+        }
+    }
+}
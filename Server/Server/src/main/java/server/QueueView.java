@@ -0,0 +1,152 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Versioned, sorted view of the pending tasks (taskQueue plus the tasks waiting in script lanes)
+// for QUEUE_STATUS and WATCH_QUEUE. Every change to the pending set bumps the version; the sorted
+// rows are rebuilt lazily by the first listing after a change, so pollers of an unchanged queue
+// get the cached rows (and the cached full listing) without copying, sorting or formatting.
+//
+// Changes only bump an atomic version while nobody watches. Watchers receive a snapshot and then
+// one delta per change, published under the same lock that takes snapshots. The queue itself is mutated before the delta is published, so a snapshot may
+// already reflect a change whose delta follows: deltas are idempotent by TaskID (ENQUEUED and
+// DEFERRED upsert a row, DEQUEUED and CANCELLED remove it if present).
+class QueueView {
+    interface Watcher {
+        // Returns false once the watcher can no longer receive deltas.
+        boolean onDelta(String delta);
+    }
+
+    static final class Snapshot {
+        final long version;
+        final List<Server.Task> tasks;
+        final String[] rows;
+        private String listing;
+
+        Snapshot(long version, List<Server.Task> tasks) {
+            this.version = version;
+            this.tasks = tasks;
+            this.rows = new String[tasks.size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = tasks.get(i).summary();
+            }
+        }
+
+        int size() {
+            return rows.length;
+        }
+
+        // The unpaged QUEUE_STATUS text, built once per version.
+        String listing() {
+            String s = listing;
+            if (s == null) {
+                StringBuilder sb = new StringBuilder("Pending Tasks:");
+                appendRows(sb, 0, rows.length);
+                listing = s = sb.toString();
+            }
+            return s;
+        }
+
+        void appendRows(StringBuilder sb, int from, int to) {
+            if (rows.length == 0) {
+                sb.append("\nQueue is empty.");
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                sb.append("\n").append(i + 1).append(". ").append(rows[i]);
+            }
+        }
+    }
+
+    private final Consumer<Collection<Server.Task>> source;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Watcher> watchers = new ArrayList<>();
+    // Set before a watcher takes its snapshot, so a change that skips the lock is in that snapshot.
+    private volatile boolean watched;
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot cached = new Snapshot(-1, Collections.emptyList());
+
+    // source appends every pending task, in any order.
+    QueueView(Consumer<Collection<Server.Task>> source) {
+        this.source = source;
+    }
+
+    Snapshot snapshot() {
+        Snapshot s = cached;
+        if (s.version == version.get()) return s;
+        lock.lock();
+        try {
+            return rebuild();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void enqueued(Server.Task task) {
+        publish("ENQUEUED ", task, true);
+    }
+
+    // Left taskQueue for its script's lane; still pending.
+    void deferred(Server.Task task) {
+        publish("DEFERRED ", task, true);
+    }
+
+    void dequeued(Server.Task task) {
+        publish("DEQUEUED ", task, false);
+    }
+
+    void cancelled(Server.Task task) {
+        publish("CANCELLED ", task, false);
+    }
+
+    // Hands the current snapshot to onSnapshot and registers the watcher for every later change.
+    void watch(Watcher watcher, Consumer<Snapshot> onSnapshot) {
+        lock.lock();
+        try {
+            watched = true;
+            onSnapshot.accept(rebuild());
+            watchers.add(watcher);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with lock held.
+    private Snapshot rebuild() {
+        Snapshot s = cached;
+        long current = version.get();
+        if (s.version == current) return s;
+        List<Server.Task> tasks = new ArrayList<>();
+        source.accept(tasks);
+        Collections.sort(tasks);
+        s = new Snapshot(current, Collections.unmodifiableList(tasks));
+        cached = s;
+        return s;
+    }
+
+    // The delta is "QUEUE v=<version> <kind><summary>", or <kind>TaskID=<id> without a row.
+    private void publish(String kind, Server.Task task, boolean row) {
+        if (!watched) {
+            version.incrementAndGet();
+            return;
+        }
+        lock.lock();
+        try {
+            long v = version.incrementAndGet();
+            String delta = "QUEUE v=" + v + " " + kind + (row ? task.summary() : "TaskID=" + task.id);
+            for (Iterator<Watcher> it = watchers.iterator(); it.hasNext(); ) {
+                if (!it.next().onDelta(delta)) it.remove();
+            }
+            if (watchers.isEmpty()) watched = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// GCRA (generic cell rate algorithm) limiter, i.e. a token bucket whose whole state is a single
+// "theoretical arrival time" per key, updated with compare-and-set, so no lock is ever taken.
+//
+// Policies come from system properties: <prefix><key>, falling back to <prefix>default and then
+// to the limiter's built-in default. A policy is "<requests>/<periodMillis>[:<burst>]", e.g.
+// "10/60000:5" allows 10 requests a minute with bursts of up to 5; "unlimited" disables limiting.
+class RateLimiter<K> {
+    static final class Policy {
+        final long intervalNanos;
+        final long toleranceNanos;
+
+        Policy(long requests, long periodMillis, long burst) {
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis) / Math.max(1, requests);
+            this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+        }
+
+        // Returns null for "unlimited" (or an empty spec).
+        static Policy parse(String spec) {
+            if (spec == null || spec.isEmpty() || spec.equalsIgnoreCase("unlimited")) return null;
+            try {
+                int slash = spec.indexOf('/');
+                int colon = spec.indexOf(':');
+                long requests = Long.parseLong(spec.substring(0, slash).trim());
+                long period = Long.parseLong(spec.substring(slash + 1, colon < 0 ? spec.length() : colon).trim());
+                long burst = colon < 0 ? 1 : Long.parseLong(spec.substring(colon + 1).trim());
+                if (requests <= 0 || period <= 0 || burst <= 0) throw new NumberFormatException();
+                return new Policy(requests, period, burst);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid rate limit policy '" + spec
+                                                   + "', expected <requests>/<periodMillis>[:<burst>]");
+            }
+        }
+    }
+
+    private static final class Bucket {
+        final Policy policy;
+        final AtomicLong theoreticalArrival;
+
+        Bucket(Policy policy) {
+            this.policy = policy;
+            this.theoreticalArrival = new AtomicLong(System.nanoTime());
+        }
+    }
+
+    private static final Bucket UNLIMITED = new Bucket(null);
+
+    private final String propertyPrefix;
+    private final String defaultSpec;
+    private final Map<K, Bucket> buckets = new ConcurrentHashMap<>();
+
+    RateLimiter(String propertyPrefix, String defaultSpec) {
+        this.propertyPrefix = propertyPrefix;
+        this.defaultSpec = System.getProperty(propertyPrefix + "default", defaultSpec);
+        Policy.parse(this.defaultSpec);
+    }
+
+    // Takes one request's worth of capacity for the key. Returns 0 when the request is allowed,
+    // otherwise the number of nanoseconds until it would be.
+    long tryAcquire(K key) {
+        Bucket bucket = buckets.computeIfAbsent(key, this::newBucket);
+        if (bucket.policy == null) return 0;
+        long interval = bucket.policy.intervalNanos;
+        long tolerance = bucket.policy.toleranceNanos;
+        while (true) {
+            long now = System.nanoTime();
+            long tat = bucket.theoreticalArrival.get();
+            long wait = tat - tolerance - now;
+            if (wait > 0) return wait;
+            if (bucket.theoreticalArrival.compareAndSet(tat, Math.max(tat, now) + interval)) return 0;
+        }
+    }
+
+    // Gives back capacity taken by tryAcquire for a request that was rejected for another reason.
+    void refund(K key) {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null || bucket.policy == null) return;
+        bucket.theoreticalArrival.addAndGet(-bucket.policy.intervalNanos);
+    }
+
+    private Bucket newBucket(K key) {
+        Policy policy = Policy.parse(System.getProperty(propertyPrefix + key, defaultSpec));
+        return policy == null ? UNLIMITED : new Bucket(policy);
+    }
+}
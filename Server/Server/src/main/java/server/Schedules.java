@@ -0,0 +1,281 @@
+package server;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Recurring tasks owned by the server (SCHEDULE / UNSCHEDULE / LIST_SCHEDULES), so they keep firing
+// after the client that created them disconnects. Each schedule has exactly one pending timeout on a
+// hashed timing wheel; when it fires, the schedule is handed to onFire and re-armed for its next run.
+// A run is the nominal time (one interval after the previous one, or the next cron match) plus a
+// random delay of up to a tenth of the period, capped at maxJitterMillis, so schedules created
+// together do not all fire in the same tick. Runs missed while the server was busy are not made up.
+// Schedules live in memory only and are lost on restart.
+//
+// Spec: an interval such as 30s, 5m, 2h or 1d (also ms; at most 365d), or a five-field cron expression
+// "minute hour day-of-month month day-of-week" with *, lists, ranges and steps, e.g. "*/5 * * * *".
+class Schedules {
+    private static final Pattern INTERVAL = Pattern.compile("(\\d+)(ms|s|m|h|d)");
+    private static final long MAX_INTERVAL_MILLIS = 365 * 86_400_000L;
+
+    static final class Schedule {
+        final int id;
+        final int serviceNumber;
+        final String scriptName;
+        final String clientName;
+        final int priority;
+        final String spec;
+        final long intervalMillis;
+        final Cron cron;
+        final AtomicLong fired = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        volatile int lastTaskId;
+        volatile long nextRunAt;
+        // Nominal time of the next run, before jitter; only touched when arming.
+        private long nominal;
+        private volatile boolean removed;
+        private volatile TimingWheel.Timeout<Schedule> timeout;
+
+        Schedule(int id, int serviceNumber, String scriptName, String clientName, int priority,
+                 String spec, long intervalMillis, Cron cron) {
+            this.id = id;
+            this.serviceNumber = serviceNumber;
+            this.scriptName = scriptName;
+            this.clientName = clientName;
+            this.priority = priority;
+            this.spec = spec;
+            this.intervalMillis = intervalMillis;
+            this.cron = cron;
+        }
+
+        String describe() {
+            return "ScheduleID=" + id + ", Script=" + scriptName + ", " + (cron != null ? "Cron=" : "Every=") + spec
+                   + ", Priority=" + priority + ", Client=" + clientName
+                   + ", NextRun=" + Server.getCurrentTimestamp(nextRunAt)
+                   + ", Fired=" + fired.get() + ", Skipped=" + skipped.get()
+                   + (lastTaskId != 0 ? ", LastTaskID=" + lastTaskId : "");
+        }
+    }
+
+    private final TimingWheel<Schedule> wheel;
+    private final ConcurrentSkipListMap<Integer, Schedule> schedules = new ConcurrentSkipListMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final Consumer<Schedule> onFire;
+    private final int capacity;
+    private final long minIntervalMillis;
+    private final long maxJitterMillis;
+
+    Schedules(Consumer<Schedule> onFire, int capacity, long tickMillis, int ticksPerWheel,
+              long minIntervalMillis, long maxJitterMillis) {
+        this.onFire = onFire;
+        this.capacity = capacity;
+        this.minIntervalMillis = Math.max(1, minIntervalMillis);
+        this.maxJitterMillis = Math.max(0, maxJitterMillis);
+        this.wheel = new TimingWheel<>("schedule-wheel", tickMillis, ticksPerWheel, this::fire);
+    }
+
+    void start() {
+        wheel.start();
+    }
+
+    // Returns the interval in milliseconds, or 0 if spec is not an interval.
+    long parseInterval(String spec) {
+        Matcher m = INTERVAL.matcher(spec);
+        if (!m.matches()) return 0;
+        long interval;
+        try {
+            long amount = Long.parseLong(m.group(1));
+            switch (m.group(2)) {
+                case "ms": interval = amount; break;
+                case "s":  interval = Math.multiplyExact(amount, 1_000L); break;
+                case "m":  interval = Math.multiplyExact(amount, 60_000L); break;
+                case "h":  interval = Math.multiplyExact(amount, 3_600_000L); break;
+                default:   interval = Math.multiplyExact(amount, 86_400_000L); break;
+            }
+        } catch (ArithmeticException | NumberFormatException e) {
+            interval = Long.MAX_VALUE;
+        }
+        if (interval < minIntervalMillis) {
+            throw new IllegalArgumentException("Schedule interval must be at least " + minIntervalMillis + " ms.");
+        }
+        // Also keeps the run-time arithmetic (now + interval) far from overflowing.
+        if (interval > MAX_INTERVAL_MILLIS) {
+            throw new IllegalArgumentException("Schedule interval must be at most 365d.");
+        }
+        return interval;
+    }
+
+    // Creates and arms a schedule; spec is an interval or a cron expression (see above).
+    Schedule add(int id, int serviceNumber, String scriptName, String clientName, int priority, String spec) {
+        long interval = parseInterval(spec);
+        Cron cron = interval == 0 ? Cron.parse(spec) : null;
+        if (count.incrementAndGet() > capacity) {
+            count.decrementAndGet();
+            throw new IllegalStateException("Schedule limit reached (" + capacity + ").");
+        }
+        Schedule schedule = new Schedule(id, serviceNumber, scriptName, clientName, priority, spec, interval, cron);
+        long now = System.currentTimeMillis();
+        schedule.nominal = cron != null ? cron.next(now) : now + interval;
+        schedules.put(id, schedule);
+        arm(schedule);
+        return schedule;
+    }
+
+    Schedule remove(int id) {
+        Schedule schedule = schedules.remove(id);
+        if (schedule == null) return null;
+        count.decrementAndGet();
+        schedule.removed = true;
+        TimingWheel.Timeout<Schedule> timeout = schedule.timeout;
+        if (timeout != null) wheel.cancel(timeout);
+        return schedule;
+    }
+
+    int size() {
+        return count.get();
+    }
+
+    // Schedules with an id greater than after, in id order.
+    Iterable<Schedule> after(int after) {
+        return schedules.tailMap(after, false).values();
+    }
+
+    private void fire(Schedule schedule) {
+        if (schedule.removed) return;
+        onFire.accept(schedule);
+        long now = System.currentTimeMillis();
+        if (schedule.cron != null) {
+            schedule.nominal = schedule.cron.next(Math.max(now, schedule.nominal));
+        } else {
+            schedule.nominal += schedule.intervalMillis;
+            if (schedule.nominal <= now) {
+                schedule.nominal += ((now - schedule.nominal) / schedule.intervalMillis + 1) * schedule.intervalMillis;
+            }
+        }
+        arm(schedule);
+    }
+
+    private void arm(Schedule schedule) {
+        long period = schedule.cron != null
+                ? schedule.cron.next(schedule.nominal) - schedule.nominal
+                : schedule.intervalMillis;
+        long jitter = Math.min(maxJitterMillis, period / 10);
+        long runAt = schedule.nominal + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        schedule.nextRunAt = runAt;
+        schedule.timeout = wheel.schedule(schedule, runAt - System.currentTimeMillis());
+        // remove() may have run between the check in fire() and publishing the new timeout.
+        if (schedule.removed) wheel.cancel(schedule.timeout);
+    }
+
+    // Five-field cron expression, evaluated in the server's time zone. As in cron, when both
+    // day-of-month and day-of-week are restricted a day matching either one qualifies.
+    static final class Cron {
+        private final BitSet minutes;
+        private final BitSet hours;
+        private final BitSet days;
+        private final BitSet months;
+        private final BitSet weekdays;
+        private final boolean anyDay;
+        private final boolean anyWeekday;
+
+        private Cron(String[] fields) {
+            minutes = parseField(fields[0], 0, 59, "minute");
+            hours = parseField(fields[1], 0, 23, "hour");
+            days = parseField(fields[2], 1, 31, "day-of-month");
+            months = parseField(fields[3], 1, 12, "month");
+            weekdays = parseField(fields[4], 0, 7, "day-of-week");
+            if (weekdays.get(7)) weekdays.set(0);
+            anyDay = fields[2].equals("*");
+            anyWeekday = fields[4].equals("*");
+        }
+
+        static Cron parse(String spec) {
+            String[] fields = spec.trim().split("\\s+");
+            if (fields.length != 5) {
+                throw new IllegalArgumentException("Invalid schedule: " + spec
+                        + ". Expected an interval (e.g. 5m) or a cron expression (minute hour day month weekday).");
+            }
+            Cron cron = new Cron(fields);
+            cron.next(System.currentTimeMillis());
+            return cron;
+        }
+
+        // First matching minute strictly after the given time.
+        long next(long afterMillis) {
+            ZoneId zone = ZoneId.systemDefault();
+            ZonedDateTime t = Instant.ofEpochMilli(afterMillis).atZone(zone).truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+            // Each step skips at least a whole minute, hour, day or month, so this covers several years.
+            for (int i = 0; i < 20_000; i++) {
+                if (!months.get(t.getMonthValue())) {
+                    t = t.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+                } else if (!dayMatches(t)) {
+                    t = t.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+                } else if (!hours.get(t.getHour())) {
+                    t = t.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+                } else if (!minutes.get(t.getMinute())) {
+                    t = t.plusMinutes(1);
+                } else {
+                    return t.toInstant().toEpochMilli();
+                }
+            }
+            throw new IllegalArgumentException("Cron expression never matches.");
+        }
+
+        private boolean dayMatches(ZonedDateTime t) {
+            boolean day = days.get(t.getDayOfMonth());
+            boolean weekday = weekdays.get(t.getDayOfWeek().getValue() % 7);
+            if (anyDay) return weekday;
+            if (anyWeekday) return day;
+            return day || weekday;
+        }
+
+        private static BitSet parseField(String field, int min, int max, String name) {
+            BitSet bits = new BitSet(max + 1);
+            for (String part : field.split(",")) {
+                int step = 1;
+                int slash = part.indexOf('/');
+                if (slash >= 0) {
+                    step = parseValue(part.substring(slash + 1), 1, max, name);
+                    part = part.substring(0, slash);
+                }
+                int from;
+                int to;
+                if (part.equals("*")) {
+                    from = min;
+                    to = max;
+                } else {
+                    int dash = part.indexOf('-');
+                    from = parseValue(dash >= 0 ? part.substring(0, dash) : part, min, max, name);
+                    to = dash >= 0 ? parseValue(part.substring(dash + 1), min, max, name) : slash >= 0 ? max : from;
+                    if (to < from) throw new IllegalArgumentException("Invalid cron " + name + " range: " + part);
+                }
+                for (int v = from; v <= to; v += step) {
+                    bits.set(v);
+                }
+            }
+            return bits;
+        }
+
+        private static int parseValue(String text, int min, int max, String name) {
+            int value;
+            try {
+                value = Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cron " + name + ": " + text);
+            }
+            if (value < min || value > max) {
+                throw new IllegalArgumentException("Cron " + name + " must be between " + min + " and " + max + ": " + text);
+            }
+            return value;
+        }
+    }
+}
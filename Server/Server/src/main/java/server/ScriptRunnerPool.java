@@ -0,0 +1,114 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+// Pool of long-lived bash coprocesses that run task scripts on request. Forking a large JVM for
+// every task is expensive; a runner forks from a small bash process instead. The JVM writes a
+// script name to the runner's stdin; the runner relays each line the script prints (stdout and
+// stderr) as "O <line>" and replies with "EXIT <code>" once the script finishes. Runners are
+// recycled after maxRuns scripts, or discarded if their pipe breaks.
+class ScriptRunnerPool {
+    private static final String RUNNER_LOOP =
+            "while IFS= read -r script; do"
+            + " \"./$script\" </dev/null 2>&1 | while IFS= read -r line || [ -n \"$line\" ]; do printf 'O %s\\n' \"$line\"; done;"
+            + " echo \"EXIT ${PIPESTATUS[0]}\"; done";
+
+    private final int coreSize;
+    private final int maxRuns;
+    private final Semaphore permits;
+    private final BlockingQueue<Runner> idle = new LinkedBlockingQueue<>();
+
+    private static final class Runner {
+        final Process process;
+        final Writer commands;
+        final BufferedReader results;
+        int runs;
+
+        Runner(Process process) {
+            this.process = process;
+            this.commands = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            this.results = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        int run(String script, Consumer<String> output) throws IOException {
+            commands.write(script);
+            commands.write('\n');
+            commands.flush();
+            String reply;
+            while ((reply = results.readLine()) != null && reply.startsWith("O ")) {
+                output.accept(reply.substring(2));
+            }
+            if (reply == null || !reply.startsWith("EXIT ")) {
+                throw new IOException("Script runner exited unexpectedly");
+            }
+            runs++;
+            return Integer.parseInt(reply.substring(5).trim());
+        }
+
+        void destroy() {
+            try {
+                commands.close();
+            } catch (IOException ignored) {
+            }
+            process.destroy();
+        }
+    }
+
+    // coreSize runners are started up front and kept warm; up to maxSize scripts may run at once.
+    ScriptRunnerPool(int coreSize, int maxSize, int maxRuns) {
+        this.coreSize = coreSize;
+        this.maxRuns = Math.max(1, maxRuns);
+        this.permits = new Semaphore(Math.max(coreSize, maxSize));
+    }
+
+    void start() throws IOException {
+        for (int i = 0; i < coreSize; i++) {
+            idle.add(newRunner());
+        }
+    }
+
+    // Runs ./script on a warm runner, passing each line of its output to the consumer as it is
+    // read, and returns its exit code.
+    int run(String script, Consumer<String> output) throws IOException, InterruptedException {
+        if (script.isEmpty() || script.indexOf('/') >= 0 || script.indexOf('\n') >= 0) {
+            throw new IOException("Refusing to run \"" + script + "\": not a script name");
+        }
+        Path path = Paths.get(script);
+        if (!Files.isRegularFile(path) || !Files.isExecutable(path)) {
+            throw new IOException("Cannot run program \"./" + script + "\": not found or not executable");
+        }
+
+        permits.acquire();
+        Runner runner = null;
+        try {
+            runner = idle.poll();
+            if (runner == null) runner = newRunner();
+            int exitCode = runner.run(script, output);
+            if (runner.runs >= maxRuns || idle.size() >= coreSize) {
+                runner.destroy();
+            } else {
+                idle.add(runner);
+            }
+            runner = null;
+            return exitCode;
+        } finally {
+            if (runner != null) runner.destroy();
+            permits.release();
+        }
+    }
+
+    private Runner newRunner() throws IOException {
+        Process process = new ProcessBuilder("bash", "-c", RUNNER_LOOP)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        return new Runner(process);
+    }
+}
@@ -0,0 +1,2030 @@
+package server;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+public class Server {
+    private static final int PORT = Integer.getInteger("server.port", 2500);
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("server.acceptBacklog", 50);
+    private static final boolean NIO_MODE = "nio".equalsIgnoreCase(System.getProperty("server.mode", "threaded"));
+    private static final boolean VIRTUAL_THREADS = "virtual".equalsIgnoreCase(System.getProperty("server.threads", "platform"))
+                                                   && VirtualThreads.isSupported();
+    private static final int OUTBOUND_CAPACITY = Integer.getInteger("server.outbound.capacity", 1024);
+    private static final boolean OUTBOUND_POLICY_DROP = "drop".equalsIgnoreCase(System.getProperty("server.outbound.policy", "disconnect"));
+    // A client whose socket write has been blocked this long is disconnected under either policy (0 disables).
+    private static final long WRITE_TIMEOUT_MS = Long.getLong("server.outbound.writeTimeoutMs", 5_000L);
+    static final BucketedTaskQueue taskQueue = new BucketedTaskQueue();
+    // At most WORKER_COUNT tasks run at once; the dispatcher waits for a free slot before taking
+    // the next task, so saturation leaves tasks in taskQueue instead of creating threads.
+    private static final int WORKER_COUNT = Integer.getInteger("server.workers", Runtime.getRuntime().availableProcessors());
+    private static final Semaphore workerSlots = new Semaphore(WORKER_COUNT);
+    private static final ScriptLanes scriptLanes = new ScriptLanes(Integer.getInteger("server.quota.default", 1));
+    // Per-client limit defaults to the historical one request per 5 minutes; services are unlimited
+    // unless server.ratelimit.service.<number> (or .default) is set.
+    private static final RateLimiter<String> clientRateLimiter = new RateLimiter<>("server.ratelimit.client.", "1/300000:1");
+    private static final RateLimiter<Integer> serviceRateLimiter = new RateLimiter<>("server.ratelimit.service.", "unlimited");
+    private static final TaskCoalescer taskCoalescer = new TaskCoalescer();
+    private static final SubmitTokens submitTokens = new SubmitTokens(Long.getLong("server.submit.tokenTtlMs", 600_000L),
+                                                                      Integer.getInteger("server.submit.maxTokens", 100_000));
+    private static final TaskBatches taskBatches = new TaskBatches(Integer.getInteger("server.batch.retain", 256));
+    private static final Schedules schedules = new Schedules(Server::fireSchedule,
+                                                             Integer.getInteger("server.schedule.max", 1_000_000),
+                                                             Long.getLong("server.schedule.tickMs", 100L),
+                                                             Integer.getInteger("server.schedule.wheelSize", 4096),
+                                                             Long.getLong("server.schedule.minIntervalMs", 1_000L),
+                                                             Long.getLong("server.schedule.maxJitterMs", 30_000L));
+    private static final int SCHEDULE_LIST_LIMIT = Integer.getInteger("server.schedule.listLimit", 1_000);
+    static final QueueView queueView = new QueueView(pending -> {
+        taskQueue.snapshotTo(pending);
+        scriptLanes.addWaitingTo(pending);
+    });
+    private static final ServerMetrics metrics = new ServerMetrics();
+    private static final int HISTORY_CAPACITY = Integer.getInteger("server.history.capacity", 100_000);
+    private static final TaskHistory taskHistory = new TaskHistory(HISTORY_CAPACITY);
+    private static final int OUTPUT_TAIL_BYTES = Integer.getInteger("server.output.tailBytes", 64 * 1024);
+    private static final int OUTPUT_RETAINED_TASKS = Integer.getInteger("server.output.retainTasks", 256);
+    // Output of running tasks, of pending tasks someone is tailing, and of the last few finished tasks.
+    private static final Map<Integer, TaskOutput> taskOutputs = new ConcurrentHashMap<>();
+    private static final Queue<Integer> finishedOutputs = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger finishedOutputCount = new AtomicInteger();
+    static final List<ClientConnection> clientConnections = new CopyOnWriteArrayList<>();
+    // Cluster mode (see ClusterNode) is on when -Dserver.cluster.nodes lists the members. Node n then
+    // hands out TaskIDs k * ID_STRIDE + n, so ids are unique across the cluster.
+    private static final String CLUSTER_NODES = System.getProperty("server.cluster.nodes", "");
+    private static final int NODE_ID = CLUSTER_NODES.isEmpty() ? 0 : Integer.getInteger("server.cluster.nodeId", 0);
+    private static final int ID_STRIDE = CLUSTER_NODES.isEmpty() ? 1 : ClusterNode.MAX_NODES;
+    private static final AtomicInteger taskIdCounter = new AtomicInteger(100 / ID_STRIDE);
+    private static final AtomicInteger batchIdCounter = new AtomicInteger();
+    private static final AtomicInteger scheduleIdCounter = new AtomicInteger();
+    private static final AtomicInteger runningTasks = new AtomicInteger();
+    private static final ClusterNode cluster = CLUSTER_NODES.isEmpty()
+            ? null
+            : new ClusterNode(NODE_ID, ClusterNode.parseMembers(CLUSTER_NODES), new ClusterHost(),
+                              Long.getLong("server.cluster.heartbeatMs", 500L),
+                              Long.getLong("server.cluster.requestTimeoutMs", 2_000L),
+                              Long.getLong("server.cluster.retryMs", 5_000L));
+    private static final ExecutorService taskExecutor = VIRTUAL_THREADS
+            ? VirtualThreads.newThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(WORKER_COUNT);
+    private static final ThreadFactory connectionThreads = VIRTUAL_THREADS
+            ? VirtualThreads.threadFactory("client-")
+            : Thread::new;
+    // Drains StreamConnection outbound queues; see StreamConnection.
+    private static final ExecutorService connectionWriters = VIRTUAL_THREADS
+            ? VirtualThreads.newThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(Integer.getInteger("server.writerThreads",
+                                                              Math.max(4, Runtime.getRuntime().availableProcessors())));
+    private static final ClientValidator clientValidator = new ClientValidator(
+            address -> validateClient(),
+            VIRTUAL_THREADS
+                    ? VirtualThreads.newThreadPerTaskExecutor()
+                    : Executors.newFixedThreadPool(Integer.getInteger("server.validation.threads", 4)),
+            Long.getLong("server.validation.ttlMs", 60_000L),
+            Long.getLong("server.validation.negativeTtlMs", 5_000L));
+    private static TaskJournal journal;
+    private static final ScriptRunnerPool scriptRunners = "fork".equalsIgnoreCase(System.getProperty("server.runner", "pool"))
+            ? null
+            : new ScriptRunnerPool(Integer.getInteger("server.runner.core", 4),
+                                   Integer.getInteger("server.runner.max", WORKER_COUNT),
+                                   Integer.getInteger("server.runner.maxRuns", 100));
+    private static final ServiceRegistry services = new ServiceRegistry();
+
+    public static void main(String[] args) throws IOException {
+        recoverFromJournal();
+        if (cluster != null) cluster.start();
+        if (scriptRunners != null) scriptRunners.start();
+        schedules.start();
+        startMetricsDump();
+
+        if (NIO_MODE) {
+            startNioFrontEnd();
+            return;
+        }
+
+        ServerSocket serverSocket = new ServerSocket(PORT, ACCEPT_BACKLOG, InetAddress.getByName("0.0.0.0"));
+        serverSocket.setReuseAddress(true);
+        ServerLog.info(null, "Server started on port " + PORT + (VIRTUAL_THREADS ? " (virtual threads)" : ""));
+
+        new Thread(Server::processTasks).start();
+
+        while (true) {
+            Socket clientSocket = serverSocket.accept();
+            connectionThreads.newThread(new ClientHandler(clientSocket)).start();
+        }
+    }
+
+    private static void startNioFrontEnd() throws IOException {
+        int acceptors = Integer.getInteger("server.nio.acceptors", 1);
+        int reactors = Integer.getInteger("server.nio.reactors", Runtime.getRuntime().availableProcessors());
+
+        NioFrontEnd frontEnd = new NioFrontEnd(new InetSocketAddress("0.0.0.0", PORT), ACCEPT_BACKLOG,
+                                               acceptors, reactors, new NioClientHandler(),
+                                               Integer.getInteger("server.outbound.maxBytes", 1 << 20), OUTBOUND_POLICY_DROP);
+        frontEnd.start();
+        // Stops accepting and closes client connections on shutdown, so clients see the close promptly.
+        Runtime.getRuntime().addShutdownHook(new Thread(frontEnd::stop, "nio-shutdown"));
+        ServerLog.info(null, "Server started on port " + PORT + " (NIO mode, "
+                             + acceptors + " acceptor(s), " + reactors + " reactor(s), backlog " + ACCEPT_BACKLOG + ")");
+
+        new Thread(Server::processTasks).start();
+    }
+
+    // Rebuilds history, pending tasks and the task id counter from the journal, then keeps
+    // journaling from here on. Tasks that were executing when the server stopped are recorded as
+    // INTERRUPTED rather than being run a second time. Batch dependencies are not journaled, so
+    // batch tasks still waiting for their parents are recorded as SKIPPED.
+    private static void recoverFromJournal() throws IOException {
+        if (!Boolean.parseBoolean(System.getProperty("server.journal", "true"))) return;
+
+        // Cluster nodes started from one directory (e.g. for testing) each need their own journal.
+        String defaultDir = cluster == null ? "journal" : "journal-" + NODE_ID;
+        TaskJournal recovered = new TaskJournal(Paths.get(System.getProperty("server.journal.dir", defaultDir)),
+                                                Math.max(1 << 20, Integer.getInteger("server.journal.segmentBytes", 16 << 20)),
+                                                Long.getLong("server.journal.syncIntervalMs", 10L),
+                                                Integer.getInteger("server.journal.maxSegments", 8),
+                                                HISTORY_CAPACITY);
+        Map<Integer, Task> pending = new LinkedHashMap<>();
+        Map<Integer, Task> started = new LinkedHashMap<>();
+        Map<Integer, Task> waiting = new LinkedHashMap<>();
+        int[] events = new int[1];
+        recovered.replay(r -> {
+            if (r.taskId / ID_STRIDE > taskIdCounter.get()) taskIdCounter.set(r.taskId / ID_STRIDE);
+            if (r.kind == TaskJournal.EVENT) {
+                taskHistory.append(r.taskId, r.script, r.client, r.status, r.eventTime);
+                events[0]++;
+            }
+            String status = TaskHistory.baseStatus(r.status);
+            if (status.equals("WAITING")) {
+                waiting.put(r.taskId, new Task(r.taskId, r.serviceNumber, r.client, r.priority, r.script, r.taskTimestamp));
+            } else if (r.kind == TaskJournal.PENDING || status.equals("QUEUED")) {
+                waiting.remove(r.taskId);
+                pending.put(r.taskId, new Task(r.taskId, r.serviceNumber, r.client, r.priority, r.script, r.taskTimestamp));
+            } else if (status.equals("EXECUTING")) {
+                waiting.remove(r.taskId);
+                pending.remove(r.taskId);
+                started.put(r.taskId, new Task(r.taskId, r.serviceNumber, r.client, r.priority, r.script, r.taskTimestamp));
+            } else {
+                waiting.remove(r.taskId);
+                pending.remove(r.taskId);
+                started.remove(r.taskId);
+            }
+        });
+
+        journal = recovered;
+        journal.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "journal-shutdown"));
+
+        for (Task task : started.values()) {
+            logTask(task, "INTERRUPTED");
+        }
+        for (Task task : waiting.values()) {
+            ServerLog.info("SKIPPED", "Batch parents were lost in the restart", "TaskID", task.id, "Script", task.scriptName);
+            logTask(task, "SKIPPED");
+        }
+        for (Task task : pending.values()) {
+            taskQueue.offer(task);
+        }
+        if (events[0] > 0) {
+            ServerLog.info(null, "Recovered " + pending.size() + " pending task(s) and "
+                                 + events[0] + " history event(s) from the journal, skipped "
+                                 + waiting.size() + " waiting batch task(s); next TaskID "
+                                 + ((taskIdCounter.get() + 1) * ID_STRIDE + NODE_ID));
+        }
+    }
+
+    static int nextTaskId() {
+        return taskIdCounter.incrementAndGet() * ID_STRIDE + NODE_ID;
+    }
+
+    static class Task implements Comparable<Task> {
+        final int id;
+        final int serviceNumber;
+        final String clientName;
+        final int priority;
+        final long timestamp;
+        final String scriptName;
+        private String summary;
+
+        public Task(int serviceNumber, String clientName, int priority, String scriptName) {
+            this.id = nextTaskId();
+            this.serviceNumber = serviceNumber;
+            this.clientName = clientName;
+            this.priority = priority;
+            this.scriptName = scriptName;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        Task(int id, int serviceNumber, String clientName, int priority, String scriptName, long timestamp) {
+            this.id = id;
+            this.serviceNumber = serviceNumber;
+            this.clientName = clientName;
+            this.priority = priority;
+            this.scriptName = scriptName;
+            this.timestamp = timestamp;
+        }
+
+        // The task as listed by QUEUE_STATUS and WATCH_QUEUE; formatted once.
+        String summary() {
+            String s = summary;
+            if (s == null) {
+                summary = s = "TaskID=" + id + ", Script=" + scriptName + ", Priority=" + priority
+                              + ", Client=" + clientName + ", QueuedAt=" + getCurrentTimestamp(timestamp);
+            }
+            return s;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (this.priority != other.priority)
+                return Integer.compare(this.priority, other.priority);
+            return Long.compare(this.timestamp, other.timestamp);
+        }
+    }
+
+    // A connected client as seen by the protocol and broadcast code, independent of the I/O model.
+    interface ClientConnection {
+        String remoteAddress();
+
+        // Queues one protocol line; returns false once the connection is no longer writable.
+        boolean send(String line);
+
+        // Queues one binary frame (see BinaryProtocol); same contract as send.
+        boolean sendFrame(ByteBuffer frame);
+
+        // Queues the line to a text connection or the frame to a binary one. The choice is made under
+        // the same lock as switchToBinary, so a broadcast never puts a text line after the switch.
+        boolean sendEither(String line, ByteBuffer frame);
+
+        boolean isBinary();
+
+        // Queues the text reply that acknowledges the switch, then switches the connection to binary
+        // frames in both directions.
+        void switchToBinary(String reply);
+
+        void close();
+    }
+
+    // Each connection owns a bounded outbound queue. When it goes from empty to non-empty, a drain is
+    // submitted to connectionWriters (a fresh virtual thread, or one of server.writerThreads platform
+    // threads), which writes whatever has accumulated in one batch and flushes once, so a connection
+    // costs no thread while it has nothing to send. Producers (request handling and broadcasts)
+    // never block on the socket; a client that falls more than OUTBOUND_CAPACITY messages behind
+    // has new messages dropped or is disconnected, per OUTBOUND_POLICY. Writers do block on the
+    // socket, so a client that stops reading could hold a shared platform writer for good: a
+    // watchdog closes any connection whose drain has been blocked longer than WRITE_TIMEOUT_MS,
+    // whatever the policy, which fails the stuck write and frees the writer.
+    static class StreamConnection implements ClientConnection {
+        private static final String CLOSE = new String("CLOSE");
+        // Connections with a drain in progress, checked by the write watchdog.
+        private static final Set<StreamConnection> writing = ConcurrentHashMap.newKeySet();
+
+        static {
+            if (WRITE_TIMEOUT_MS > 0) {
+                ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "write-watchdog");
+                    t.setDaemon(true);
+                    return t;
+                });
+                long period = Math.max(10, WRITE_TIMEOUT_MS / 4);
+                watchdog.scheduleAtFixedRate(StreamConnection::checkWrites, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final BlockingQueue<Object> outbound = new ArrayBlockingQueue<>(OUTBOUND_CAPACITY + 1);
+        // Set while a drain is submitted or running; at most one drain per connection.
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final AtomicInteger dropped = new AtomicInteger();
+        // Orders the protocol switch against sendEither.
+        private final ReentrantLock modeLock = new ReentrantLock();
+        private volatile boolean closed;
+        private volatile boolean binary;
+        private volatile long drainStartedAt;
+
+        StreamConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        }
+
+        public String remoteAddress() {
+            return socket.getInetAddress().getHostAddress();
+        }
+
+        public boolean send(String line) {
+            return enqueue(line);
+        }
+
+        public boolean sendFrame(ByteBuffer frame) {
+            return enqueue(frame);
+        }
+
+        public boolean sendEither(String line, ByteBuffer frame) {
+            modeLock.lock();
+            try {
+                return enqueue(binary ? frame : line);
+            } finally {
+                modeLock.unlock();
+            }
+        }
+
+        public boolean isBinary() {
+            return binary;
+        }
+
+        public void switchToBinary(String reply) {
+            modeLock.lock();
+            try {
+                enqueue(reply);
+                binary = true;
+            } finally {
+                modeLock.unlock();
+            }
+        }
+
+        private boolean enqueue(Object message) {
+            if (closed) return false;
+            if (outbound.size() < OUTBOUND_CAPACITY && outbound.offer(message)) {
+                scheduleDrain();
+                return true;
+            }
+            if (OUTBOUND_POLICY_DROP) {
+                int n = dropped.incrementAndGet();
+                if (n == 1 || n % 1000 == 0) {
+                    ServerLog.warn("SLOW CLIENT", remoteAddress(), "Dropped", n + " message(s), outbound queue full");
+                }
+                return true;
+            }
+            evict("outbound queue exceeded " + OUTBOUND_CAPACITY + " messages");
+            return false;
+        }
+
+        // Lets the writer finish what is already queued, then closes the socket.
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (outbound.offer(CLOSE)) {
+                scheduleDrain();
+            } else {
+                stopWriter();
+            }
+        }
+
+        private void evict(String reason) {
+            if (closed) return;
+            closed = true;
+            ServerLog.warn("SLOW CLIENT", "Disconnecting " + remoteAddress() + ": " + reason);
+            stopWriter();
+        }
+
+        private static void checkWrites() {
+            long now = System.currentTimeMillis();
+            for (StreamConnection c : writing) {
+                long blocked = now - c.drainStartedAt;
+                if (blocked <= WRITE_TIMEOUT_MS || !writing.remove(c)) continue;
+                // Also applies after close(), whose final flush can block just the same.
+                c.closed = true;
+                ServerLog.warn("SLOW CLIENT", "Disconnecting " + c.remoteAddress() + ": write blocked for " + blocked + " ms");
+                c.stopWriter();
+            }
+        }
+
+        // Discards anything unsent; closing the socket also fails a write that is stuck on it.
+        private void stopWriter() {
+            outbound.clear();
+            while (!outbound.offer(CLOSE)) outbound.poll();
+            closeSocket();
+        }
+
+        private void scheduleDrain() {
+            if (!draining.compareAndSet(false, true)) return;
+            try {
+                connectionWriters.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                closeSocket();
+            }
+        }
+
+        // Writes one batch, then hands the writer back: platform writers are shared, so a busy
+        // connection is resubmitted rather than keeping its writer.
+        private void drain() {
+            List<Object> batch = new ArrayList<>();
+            drainStartedAt = System.currentTimeMillis();
+            writing.add(this);
+            try {
+                outbound.drainTo(batch);
+                for (Object message : batch) {
+                    if (message == CLOSE) {
+                        out.flush();
+                        closeSocket();
+                        return; // draining stays set; nothing is written after CLOSE
+                    }
+                    if (message instanceof ByteBuffer) {
+                        ByteBuffer frame = (ByteBuffer) message;
+                        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    } else {
+                        out.write(((String) message).getBytes(StandardCharsets.UTF_8));
+                        out.write('\n');
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                closed = true;
+                outbound.clear();
+                closeSocket();
+                return;
+            } finally {
+                writing.remove(this);
+            }
+            draining.set(false);
+            // A message queued after drainTo found the flag still set and did not submit a drain.
+            if (!outbound.isEmpty()) scheduleDrain();
+        }
+
+        private void closeSocket() {
+            try {
+                if (!socket.isClosed()) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                ServerLog.warn(null, "Error closing socket: " + e.getMessage());
+            }
+        }
+    }
+
+    static class ClientHandler implements Runnable {
+        private final Socket socket;
+        private DataInputStream in;
+        private StreamConnection connection;
+        private ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(256);
+        private byte[] frameBuffer = new byte[256];
+
+        public ClientHandler(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            String clientIP = socket.getInetAddress().getHostAddress();
+            try {
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                connection = new StreamConnection(socket);
+                clientConnections.add(connection);
+                metrics.connectionOpened();
+                RequestHandler handler = new RequestHandler(connection);
+
+                ServerLog.info(null, "Connection from " + clientIP);
+
+                int validationResult = awaitValidation(clientIP);
+                ServerLog.info(null, "Network.sh validation result for " + clientIP + ": "
+                                     + (validationResult == 0 ? "Success" : "Failed"));
+
+                if (validationResult != 0) {
+                    handler.sendRejected(ServerMetrics.Rejection.VALIDATION, "Client validation failed (Code: " + validationResult + ")");
+                    closeResources();
+                    return;
+                }
+
+                ServerLog.info(null, "Client authenticated: " + clientIP);
+
+                String request;
+                while (!connection.isBinary() && (request = readLine()) != null) {
+                    ServerLog.info(null, "Received request", "From", clientIP, "Request", request);
+                    handler.handle(request);
+                }
+                while (connection.isBinary()) {
+                    ByteBuffer frame = readFrame();
+                    if (frame == null) break;
+                    handler.handleFrame(frame);
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    ServerLog.warn(null, "Client connection error with " + clientIP + ": " + e.getMessage());
+                }
+            } finally {
+                closeResources();
+                ServerLog.info(null, "Connection closed: " + clientIP);
+            }
+        }
+
+        // Reads one text line without a Reader, so the stream can switch to binary frames afterwards.
+        private String readLine() throws IOException {
+            lineBuffer.reset();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    if (lineBuffer.size() == 0) return null;
+                    break;
+                }
+                lineBuffer.write(b);
+            }
+            String line = lineBuffer.toString(StandardCharsets.UTF_8);
+            if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+            if (lineBuffer.size() > 4096) lineBuffer = new ByteArrayOutputStream(256);
+            return line;
+        }
+
+        // Reads one frame into a buffer that is reused across requests; null at end of stream.
+        private ByteBuffer readFrame() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (length < BinaryProtocol.FRAME_HEADER - 4 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                throw new IOException("invalid frame length " + length);
+            }
+            if (frameBuffer.length < length) frameBuffer = new byte[Math.max(length, frameBuffer.length * 2)];
+            in.readFully(frameBuffer, 0, length);
+            return ByteBuffer.wrap(frameBuffer, 0, length);
+        }
+
+        private void closeResources() {
+            if (connection != null) {
+                clientConnections.remove(connection);
+                connection.close();
+            } else {
+                try {
+                    if (!socket.isClosed()) {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    ServerLog.warn(null, "Error closing socket: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Bridges the selector front end to the line protocol. Reads are only enabled once the
+    // client has been admitted by the (asynchronous, cached) validator.
+    static class NioClientHandler implements NioFrontEnd.Handler {
+        public void onOpen(NioFrontEnd.Connection connection) {
+            String clientIP = connection.remoteAddress();
+            clientConnections.add(connection);
+            metrics.connectionOpened();
+            RequestHandler handler = new RequestHandler(connection);
+            connection.attach(handler);
+
+            ServerLog.info(null, "Connection from " + clientIP);
+
+            clientValidator.validate(clientIP).whenComplete((result, error) -> {
+                int validationResult = error == null ? result : -1;
+                ServerLog.info(null, "Network.sh validation result for " + clientIP + ": "
+                                     + (validationResult == 0 ? "Success" : "Failed"));
+
+                if (validationResult != 0) {
+                    handler.sendRejected(ServerMetrics.Rejection.VALIDATION, "Client validation failed (Code: " + validationResult + ")");
+                    connection.close();
+                    return;
+                }
+
+                ServerLog.info(null, "Client authenticated: " + clientIP);
+                connection.enableReads();
+            });
+        }
+
+        public void onLine(NioFrontEnd.Connection connection, String request) {
+            ServerLog.info(null, "Received request", "From", connection.remoteAddress(), "Request", request);
+            ((RequestHandler) connection.attachment()).handle(request);
+        }
+
+        public void onFrame(NioFrontEnd.Connection connection, ByteBuffer frame) {
+            ((RequestHandler) connection.attachment()).handleFrame(frame);
+        }
+
+        public void onClose(NioFrontEnd.Connection connection) {
+            clientConnections.remove(connection);
+            ServerLog.info(null, "Connection closed: " + connection.remoteAddress());
+        }
+    }
+
+    private static int awaitValidation(String clientIP) {
+        try {
+            return clientValidator.validate(clientIP).get();
+        } catch (ExecutionException e) {
+            ServerLog.error(null, "Client validation error: " + e.getCause());
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private static int validateClient() {
+        try {
+            Process process = new ProcessBuilder("./Network.sh").start();
+            return waitForExit(process);
+        } catch (IOException | InterruptedException e) {
+            ServerLog.error(null, "Client validation script error: " + e.getMessage());
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    // Streams a tailed task's output to one connection, as STATUS lines or as OK frames carrying the
+    // TAIL_TASK request's id.
+    static class OutputSubscriber implements TaskOutput.Subscriber {
+        private final ClientConnection connection;
+        private final int requestId;
+
+        OutputSubscriber(ClientConnection connection, int requestId) {
+            this.connection = connection;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public boolean onLine(int taskId, String line) {
+            return send("OUTPUT: TaskID " + taskId + " | " + line);
+        }
+
+        @Override
+        public void onFinished(int taskId, String status) {
+            send("OUTPUT: TaskID " + taskId + " finished with status: " + status);
+        }
+
+        private boolean send(String message) {
+            if (connection.isBinary()) {
+                return connection.sendFrame(BinaryProtocol.textReply(requestId, BinaryProtocol.OK, System.currentTimeMillis(), message));
+            }
+            return connection.send("STATUS;" + getCurrentTimestamp() + ";" + message);
+        }
+    }
+
+    // Streams queue deltas to one WATCH_QUEUE connection, as STATUS lines or as OK frames carrying
+    // the WATCH_QUEUE request's id.
+    static class QueueWatcher implements QueueView.Watcher {
+        private final ClientConnection connection;
+        private final int requestId;
+
+        QueueWatcher(ClientConnection connection, int requestId) {
+            this.connection = connection;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public boolean onDelta(String delta) {
+            if (connection.isBinary()) {
+                return connection.sendFrame(BinaryProtocol.textReply(requestId, BinaryProtocol.OK, System.currentTimeMillis(), delta));
+            }
+            return connection.send("STATUS;" + getCurrentTimestamp() + ";" + delta);
+        }
+    }
+
+    // Line protocol (REQUEST_TASK / REQUEST_BATCH / BATCH_STATUS / SCHEDULE / UNSCHEDULE / LIST_SCHEDULES /
+    // QUEUE_STATUS / WATCH_QUEUE / CANCEL_TASK / TASK_HISTORY / TAIL_TASK / METRICS / CLUSTER_STATUS) for one connection.
+    static class RequestHandler {
+        private final ClientConnection connection;
+        // Request id of the binary frame being handled; replies echo it.
+        private int requestId;
+
+        RequestHandler(ClientConnection connection) {
+            this.connection = connection;
+        }
+
+        void handle(String request) {
+            if (request.equals(BinaryProtocol.NEGOTIATE)) {
+                connection.switchToBinary("STATUS;" + getCurrentTimestamp() + ";PROTOCOL BINARY");
+            } else if (request.startsWith("REQUEST_TASK")) {
+                handleTaskRequest(request);
+            } else if (request.startsWith("REQUEST_BATCH")) {
+                handleBatchRequest(request);
+            } else if (request.startsWith("BATCH_STATUS")) {
+                batchStatus(request);
+            } else if (request.startsWith("SCHEDULE;")) {
+                handleScheduleRequest(request);
+            } else if (request.startsWith("UNSCHEDULE")) {
+                unschedule(request);
+            } else if (request.equals("LIST_SCHEDULES") || request.startsWith("LIST_SCHEDULES;")) {
+                listSchedules(request);
+            } else if (request.equals("QUEUE_STATUS") || request.startsWith("QUEUE_STATUS;")) {
+                sendQueueStatus(request);
+            } else if (request.equals("WATCH_QUEUE")) {
+                watchQueue();
+            } else if (request.startsWith("CANCEL_TASK")) {
+                cancelTask(request);
+            } else if (request.equals("TASK_HISTORY") || request.startsWith("TASK_HISTORY;")) {
+                sendTaskHistory(request);
+            } else if (request.startsWith("TAIL_TASK")) {
+                tailTask(request);
+            } else if (request.equals("METRICS")) {
+                sendResponse(renderMetrics());
+            } else if (request.equals("CLUSTER_STATUS")) {
+                sendClusterStatus();
+            } else {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid command: " + request);
+            }
+        }
+
+        // Decodes one binary frame (requestId, opcode, payload) straight from the read buffer.
+        void handleFrame(ByteBuffer frame) {
+            try {
+                requestId = frame.getInt();
+                byte opcode = frame.get();
+                switch (opcode) {
+                    case BinaryProtocol.SUBMIT:
+                        int serviceNumber = frame.getShort() & 0xFFFF;
+                        int priority = frame.getInt();
+                        String clientName = BinaryProtocol.readShortString(frame);
+                        String userName = BinaryProtocol.readShortString(frame);
+                        long token = frame.remaining() >= 8 ? frame.getLong() : 0;
+                        submitTask(serviceNumber, clientName, priority, userName.isEmpty() ? null : userName, token);
+                        break;
+                    case BinaryProtocol.QUEUE_STATUS:
+                        if (frame.hasRemaining()) sendQueueStatus(frame.getInt(), frame.getInt());
+                        else sendQueueStatus(0, Integer.MAX_VALUE);
+                        break;
+                    case BinaryProtocol.WATCH_QUEUE:
+                        watchQueue();
+                        break;
+                    case BinaryProtocol.CLUSTER_STATUS:
+                        sendClusterStatus();
+                        break;
+                    case BinaryProtocol.COMMAND:
+                        String line = BinaryProtocol.readShortString(frame);
+                        if (line.equals(BinaryProtocol.NEGOTIATE)) {
+                            sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Connection already uses binary frames.");
+                        } else {
+                            handle(line);
+                        }
+                        break;
+                    case BinaryProtocol.BATCH:
+                        String batchClient = BinaryProtocol.readShortString(frame);
+                        int batchPriority = frame.getInt();
+                        String nodes = BinaryProtocol.readShortString(frame);
+                        submitBatch(batchClient, batchPriority, nodes.split(";"), 0);
+                        break;
+                    case BinaryProtocol.BATCH_STATUS:
+                        batchStatus(frame.getInt());
+                        break;
+                    case BinaryProtocol.SCHEDULE:
+                        int scheduleService = frame.getShort() & 0xFFFF;
+                        String spec = BinaryProtocol.readShortString(frame);
+                        int schedulePriority = frame.getInt();
+                        String scheduleClient = BinaryProtocol.readShortString(frame);
+                        String scheduleUser = BinaryProtocol.readShortString(frame);
+                        createSchedule(scheduleService, spec, schedulePriority,
+                                       scheduleClient.isEmpty() ? "scheduler" : scheduleClient,
+                                       scheduleUser.isEmpty() ? null : scheduleUser);
+                        break;
+                    case BinaryProtocol.UNSCHEDULE:
+                        unschedule(frame.getInt());
+                        break;
+                    case BinaryProtocol.LIST_SCHEDULES:
+                        String scheduleFilters = BinaryProtocol.readShortString(frame);
+                        listSchedules(scheduleFilters.isEmpty() ? "LIST_SCHEDULES" : "LIST_SCHEDULES;" + scheduleFilters);
+                        break;
+                    case BinaryProtocol.CANCEL:
+                        cancelTask(frame.getInt());
+                        break;
+                    case BinaryProtocol.HISTORY:
+                        String filters = BinaryProtocol.readShortString(frame);
+                        sendTaskHistory(filters.isEmpty() ? "TASK_HISTORY" : "TASK_HISTORY;" + filters);
+                        break;
+                    case BinaryProtocol.TAIL:
+                        tailTask(frame.getInt());
+                        break;
+                    case BinaryProtocol.METRICS:
+                        sendResponse(renderMetrics());
+                        break;
+                    default:
+                        sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid opcode: " + opcode);
+                }
+            } catch (BufferUnderflowException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Malformed frame.");
+            } finally {
+                requestId = 0;
+            }
+        }
+
+        private void handleTaskRequest(String request) {
+            String[] parts = request.split(";");
+            try {
+                if (parts.length < 4) throw new IllegalArgumentException("Invalid REQUEST_TASK format.");
+
+                int serviceNumber = Integer.parseInt(parts[1]);
+                String clientName = parts[2];
+                int priority = Integer.parseInt(parts[3]);
+
+                if (serviceNumber == ServiceRegistry.LOGIN_SERVICE && parts.length != 5) {
+                    sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "For service 2005, format: REQUEST_TASK;2005;ClientName;Priority;UserName");
+                    return;
+                }
+                submitTask(serviceNumber, clientName, priority, parts.length > 4 ? parts[4] : null, 0);
+
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid number format in request. ServiceNumber and Priority must be integers.");
+            } catch (IllegalArgumentException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, e.getMessage());
+            }
+        }
+
+        // token (0 for none) identifies a binary client's submit across resends; see SubmitTokens.
+        private void submitTask(int serviceNumber, String clientName, int priority, String userName, long token) {
+            int previous = submitTokens.taskFor(token);
+            if (previous != 0) {
+                ServerLog.info("DUPLICATE", "Submit resent", "TaskID", previous, "Client", clientName);
+                sendQueued(previous);
+                return;
+            }
+            String scriptName;
+            if (serviceNumber == ServiceRegistry.LOGIN_SERVICE) {
+                if (userName == null) {
+                    sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "For service 2005, format: REQUEST_TASK;2005;ClientName;Priority;UserName");
+                    return;
+                }
+                scriptName = ServiceRegistry.loginScript(userName);
+            } else {
+                scriptName = getScriptName(serviceNumber);
+                if (scriptName == null) {
+                    sendRejected(ServerMetrics.Rejection.INVALID_SERVICE, "Invalid service number: " + serviceNumber);
+                    return;
+                }
+            }
+
+            boolean coalesce = taskCoalescer.coalesces(serviceNumber);
+            if (coalesce) {
+                TaskCoalescer.Result cached = taskCoalescer.cachedResult(serviceNumber, scriptName);
+                if (cached != null) {
+                    ServerLog.info("CACHED", null, "TaskID", cached.taskId, "Client", clientName, "Script", scriptName);
+                    submitTokens.claim(token, cached.taskId);
+                    sendQueued(cached.taskId);
+                    sendCachedResult(cached, scriptName);
+                    return;
+                }
+                Task joined = taskCoalescer.join(scriptName);
+                if (joined != null) {
+                    ServerLog.info("COALESCED", null, "TaskID", joined.id, "Client", clientName, "Script", scriptName);
+                    submitTokens.claim(token, joined.id);
+                    sendQueued(joined.id);
+                    return;
+                }
+            }
+
+            long retryNanos = clientRateLimiter.tryAcquire(clientName);
+            if (retryNanos > 0) {
+                sendRejected(ServerMetrics.Rejection.RATE_LIMIT_CLIENT, "Rate limit exceeded for client: " + clientName + " (retry after " + toRetryMillis(retryNanos) + " ms)");
+                return;
+            }
+            retryNanos = serviceRateLimiter.tryAcquire(serviceNumber);
+            if (retryNanos > 0) {
+                clientRateLimiter.refund(clientName);
+                sendRejected(ServerMetrics.Rejection.RATE_LIMIT_SERVICE, "Rate limit exceeded for service: " + serviceNumber + " (retry after " + toRetryMillis(retryNanos) + " ms)");
+                return;
+            }
+
+            Task task = new Task(serviceNumber, clientName, priority, scriptName);
+            // A resend that raced the original submit past the check above.
+            int claimed = submitTokens.claim(token, task.id);
+            if (claimed != task.id) {
+                clientRateLimiter.refund(clientName);
+                serviceRateLimiter.refund(serviceNumber);
+                ServerLog.info("DUPLICATE", "Submit resent", "TaskID", claimed, "Client", clientName);
+                sendQueued(claimed);
+                return;
+            }
+            if (coalesce) {
+                Task winner = taskCoalescer.register(task);
+                if (winner != task) {
+                    clientRateLimiter.refund(clientName);
+                    serviceRateLimiter.refund(serviceNumber);
+                    submitTokens.update(token, winner.id);
+                    ServerLog.info("COALESCED", null, "TaskID", winner.id, "Client", clientName, "Script", scriptName);
+                    sendQueued(winner.id);
+                    return;
+                }
+            }
+            logTask(task, "QUEUED");
+            taskQueue.offer(task);
+            queueView.enqueued(task);
+            metrics.taskQueued();
+
+            ServerLog.info("QUEUED", null, "TaskID", task.id, "Client", clientName, "Script", scriptName, "Priority", priority);
+            sendQueued(task.id);
+        }
+
+        // REQUEST_BATCH;ClientName;Priority;name=service[:user][@parent,...];...
+        private void handleBatchRequest(String request) {
+            String[] parts = request.split(";");
+            if (parts.length < 4) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid REQUEST_BATCH format. Expected: REQUEST_BATCH;ClientName;Priority;name=service[:user][@parent,...];...");
+                return;
+            }
+            try {
+                submitBatch(parts[1], Integer.parseInt(parts[2]), parts, 3);
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid number format in REQUEST_BATCH. Priority and service numbers must be integers.");
+            }
+        }
+
+        // Submits all tasks of a batch in one round trip. The batch counts as one request against the
+        // client's rate limit and as one task per node against the service limits.
+        private void submitBatch(String clientName, int priority, String[] parts, int from) {
+            List<TaskBatches.Spec> specs;
+            try {
+                specs = TaskBatches.parse(parts, from);
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid number format in REQUEST_BATCH. Priority and service numbers must be integers.");
+                return;
+            } catch (IllegalArgumentException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, e.getMessage());
+                return;
+            }
+            List<String> scripts = new ArrayList<>(specs.size());
+            for (TaskBatches.Spec spec : specs) {
+                String scriptName;
+                if (spec.serviceNumber == ServiceRegistry.LOGIN_SERVICE) {
+                    if (spec.userName == null || spec.userName.isEmpty()) {
+                        sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Batch node " + spec.name + ": service 2005 needs a user, e.g. " + spec.name + "=2005:UserName");
+                        return;
+                    }
+                    scriptName = ServiceRegistry.loginScript(spec.userName);
+                } else {
+                    scriptName = getScriptName(spec.serviceNumber);
+                    if (scriptName == null) {
+                        sendRejected(ServerMetrics.Rejection.INVALID_SERVICE, "Invalid service number: " + spec.serviceNumber + " (batch node " + spec.name + ")");
+                        return;
+                    }
+                }
+                scripts.add(scriptName);
+            }
+
+            long retryNanos = clientRateLimiter.tryAcquire(clientName);
+            if (retryNanos > 0) {
+                sendRejected(ServerMetrics.Rejection.RATE_LIMIT_CLIENT, "Rate limit exceeded for client: " + clientName + " (retry after " + toRetryMillis(retryNanos) + " ms)");
+                return;
+            }
+            for (int i = 0; i < specs.size(); i++) {
+                retryNanos = serviceRateLimiter.tryAcquire(specs.get(i).serviceNumber);
+                if (retryNanos > 0) {
+                    for (int j = 0; j < i; j++) {
+                        serviceRateLimiter.refund(specs.get(j).serviceNumber);
+                    }
+                    clientRateLimiter.refund(clientName);
+                    sendRejected(ServerMetrics.Rejection.RATE_LIMIT_SERVICE, "Rate limit exceeded for service: " + specs.get(i).serviceNumber + " (retry after " + toRetryMillis(retryNanos) + " ms)");
+                    return;
+                }
+            }
+
+            int batchId = batchIdCounter.incrementAndGet() * ID_STRIDE + NODE_ID;
+            List<Task> tasks = new ArrayList<>(specs.size());
+            for (int i = 0; i < specs.size(); i++) {
+                tasks.add(new Task(specs.get(i).serviceNumber, clientName, priority, scripts.get(i)));
+            }
+            List<Task> roots = taskBatches.register(batchId, clientName, specs, tasks);
+            for (Task task : tasks) {
+                if (!roots.contains(task)) logTask(task, "WAITING");
+            }
+            for (Task task : roots) {
+                logTask(task, "QUEUED");
+                taskQueue.offer(task);
+                queueView.enqueued(task);
+                metrics.taskQueued();
+            }
+            ServerLog.info("BATCH", null, "BatchID", batchId, "Client", clientName, "Tasks", tasks.size(), "Ready", roots.size());
+            sendResponse("Batch queued with ID " + batchId + "\n" + taskBatches.describe(batchId));
+        }
+
+        private void batchStatus(String request) {
+            String[] parts = request.split(";");
+            if (parts.length != 2) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid BATCH_STATUS format. Expected: BATCH_STATUS;BatchID");
+                return;
+            }
+            try {
+                batchStatus(Integer.parseInt(parts[1]));
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid BatchID format. BatchID must be an integer.");
+            }
+        }
+
+        private void batchStatus(int batchId) {
+            String status = taskBatches.describe(batchId);
+            if (status == null) {
+                sendRejected(ServerMetrics.Rejection.NOT_FOUND, "Batch " + batchId + " not found.");
+            } else {
+                sendResponse(status);
+            }
+        }
+
+        // SCHEDULE;ServiceNumber;Interval-or-cron;Priority[;ClientName[;UserName]]
+        private void handleScheduleRequest(String request) {
+            String[] parts = request.split(";");
+            if (parts.length < 4 || parts.length > 6) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid SCHEDULE format. Expected: SCHEDULE;ServiceNumber;Interval-or-cron;Priority[;ClientName[;UserName]]");
+                return;
+            }
+            try {
+                createSchedule(Integer.parseInt(parts[1]), parts[2], Integer.parseInt(parts[3]),
+                               parts.length > 4 ? parts[4] : "scheduler", parts.length > 5 ? parts[5] : null);
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid number format in SCHEDULE. ServiceNumber and Priority must be integers.");
+            }
+        }
+
+        private void createSchedule(int serviceNumber, String spec, int priority, String clientName, String userName) {
+            String scriptName;
+            if (serviceNumber == ServiceRegistry.LOGIN_SERVICE) {
+                if (userName == null) {
+                    sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "For service 2005, format: SCHEDULE;2005;Interval-or-cron;Priority;ClientName;UserName");
+                    return;
+                }
+                scriptName = ServiceRegistry.loginScript(userName);
+            } else {
+                scriptName = getScriptName(serviceNumber);
+                if (scriptName == null) {
+                    sendRejected(ServerMetrics.Rejection.INVALID_SERVICE, "Invalid service number: " + serviceNumber);
+                    return;
+                }
+            }
+
+            int scheduleId = scheduleIdCounter.incrementAndGet() * ID_STRIDE + NODE_ID;
+            Schedules.Schedule schedule;
+            try {
+                schedule = schedules.add(scheduleId, serviceNumber, scriptName, clientName, priority, spec.trim());
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, e.getMessage());
+                return;
+            }
+            ServerLog.info("SCHEDULED", null, "ScheduleID", scheduleId, "Client", clientName, "Script", scriptName,
+                           "Spec", schedule.spec, "Next run", getCurrentTimestamp(schedule.nextRunAt));
+            sendResponse("Schedule created with ID " + scheduleId + "; next run at " + getCurrentTimestamp(schedule.nextRunAt));
+        }
+
+        private void unschedule(String request) {
+            String[] parts = request.split(";");
+            if (parts.length != 2) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid UNSCHEDULE format. Expected: UNSCHEDULE;ScheduleID");
+                return;
+            }
+            try {
+                unschedule(Integer.parseInt(parts[1]));
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid ScheduleID format. ScheduleID must be an integer.");
+            }
+        }
+
+        private void unschedule(int scheduleId) {
+            Schedules.Schedule schedule = schedules.remove(scheduleId);
+            if (schedule == null) {
+                sendRejected(ServerMetrics.Rejection.NOT_FOUND, "Schedule " + scheduleId + " not found.");
+                return;
+            }
+            ServerLog.info("UNSCHEDULED", null, "ScheduleID", scheduleId, "Script", schedule.scriptName, "Fired", schedule.fired.get());
+            sendResponse("Schedule " + scheduleId + " removed after " + schedule.fired.get() + " run(s).");
+        }
+
+        // LIST_SCHEDULES[;after=ScheduleID][;limit=N][;client=ClientName], in ScheduleID order.
+        private void listSchedules(String request) {
+            int after = Integer.MIN_VALUE;
+            int limit = SCHEDULE_LIST_LIMIT;
+            String client = null;
+            String[] parts = request.split(";");
+            try {
+                for (int i = 1; i < parts.length; i++) {
+                    int eq = parts[i].indexOf('=');
+                    if (eq <= 0) throw new IllegalArgumentException("Invalid LIST_SCHEDULES option: " + parts[i]);
+                    String key = parts[i].substring(0, eq);
+                    String value = parts[i].substring(eq + 1);
+                    switch (key) {
+                        case "after":  after = Integer.parseInt(value); break;
+                        case "limit":  limit = Integer.parseInt(value); break;
+                        case "client": client = value; break;
+                        default: throw new IllegalArgumentException("Unknown LIST_SCHEDULES option: " + key);
+                    }
+                }
+                if (limit <= 0) throw new IllegalArgumentException("LIST_SCHEDULES limit must be positive.");
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid number in LIST_SCHEDULES option. after and limit must be integers.");
+                return;
+            } catch (IllegalArgumentException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, e.getMessage());
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("Schedules (").append(schedules.size()).append(" total):");
+            int listed = 0;
+            int lastId = 0;
+            boolean more = false;
+            for (Schedules.Schedule schedule : schedules.after(after)) {
+                if (client != null && !client.equals(schedule.clientName)) continue;
+                if (listed == limit) {
+                    more = true;
+                    break;
+                }
+                sb.append("\n").append(schedule.describe());
+                lastId = schedule.id;
+                listed++;
+            }
+            if (listed == 0) sb.append("\nNo schedules.");
+            if (more) sb.append("\nMore entries available: after=").append(lastId);
+            sendResponse(sb.toString());
+        }
+
+        private void sendQueued(int taskId) {
+            if (connection.isBinary()) {
+                connection.sendFrame(BinaryProtocol.taskReply(requestId, BinaryProtocol.QUEUED, System.currentTimeMillis(), taskId));
+            } else {
+                sendResponse("Task queued with ID " + taskId);
+            }
+        }
+
+        // Replays the completion event of the run whose result is being reused, to this requester only.
+        private void sendCachedResult(TaskCoalescer.Result cached, String scriptName) {
+            String detail = "cached result from " + getCurrentTimestamp(cached.completedAt);
+            if (connection.isBinary()) {
+                connection.sendFrame(BinaryProtocol.event(System.currentTimeMillis(), cached.taskId,
+                                                          BinaryProtocol.STATUS_COMPLETED, scriptName, detail));
+            } else {
+                connection.send("STATUS;" + getCurrentTimestamp() + ";COMPLETED: TaskID " + cached.taskId + " (" + scriptName
+                                + ") finished with status: COMPLETED (" + detail + ")");
+            }
+        }
+
+        private long toRetryMillis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos + 999_999);
+        }
+
+        private String getScriptName(int serviceNumber) {
+            return services.scriptName(serviceNumber);
+        }
+
+        // QUEUE_STATUS[;offset=N][;limit=N]
+        private void sendQueueStatus(String request) {
+            int offset = 0;
+            int limit = Integer.MAX_VALUE;
+            String[] parts = request.split(";");
+            try {
+                for (int i = 1; i < parts.length; i++) {
+                    int eq = parts[i].indexOf('=');
+                    if (eq <= 0) throw new IllegalArgumentException("Invalid QUEUE_STATUS option: " + parts[i]);
+                    String key = parts[i].substring(0, eq);
+                    int value = Integer.parseInt(parts[i].substring(eq + 1));
+                    switch (key) {
+                        case "offset": offset = value; break;
+                        case "limit":  limit = value; break;
+                        default: throw new IllegalArgumentException("Unknown QUEUE_STATUS option: " + key);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid number in QUEUE_STATUS option. offset and limit must be integers.");
+                return;
+            } catch (IllegalArgumentException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, e.getMessage());
+                return;
+            }
+            sendQueueStatus(offset, limit);
+        }
+
+        // Answers from the cached sorted view; the full listing is itself cached per queue version.
+        private void sendQueueStatus(int offset, int limit) {
+            if (offset < 0 || limit <= 0) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "QUEUE_STATUS offset must not be negative and limit must be positive.");
+                return;
+            }
+            QueueView.Snapshot snapshot = queueView.snapshot();
+            if (cluster != null) {
+                sendClusterQueueStatus(snapshot, offset, limit);
+                return;
+            }
+            if (offset == 0 && limit >= snapshot.size()) {
+                sendResponse(snapshot.listing());
+                return;
+            }
+            int to = (int) Math.min(snapshot.size(), (long) offset + limit);
+            StringBuilder sb = new StringBuilder();
+            sb.append("Pending Tasks (").append(snapshot.size()).append(" total, version ").append(snapshot.version).append("):");
+            if (offset < to) snapshot.appendRows(sb, offset, to);
+            else if (snapshot.size() == 0) sb.append("\nQueue is empty.");
+            if (to < snapshot.size()) {
+                sb.append("\nMore entries available: offset=").append(to);
+            }
+            sendResponse(sb.toString());
+        }
+
+        // Merges this node's view with the first offset + limit pending tasks of every other member.
+        private void sendClusterQueueStatus(QueueView.Snapshot local, int offset, int limit) {
+            int replyTo = requestId;
+            int wanted = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+            Set<Integer> missing = ConcurrentHashMap.newKeySet();
+            cluster.remotePendingTasks(wanted, missing).thenAccept(remote -> {
+                List<Task> tasks = new ArrayList<>(local.tasks.size() + remote.size());
+                tasks.addAll(local.tasks);
+                tasks.addAll(remote);
+                Collections.sort(tasks);
+                int to = Math.min(tasks.size(), wanted);
+                StringBuilder sb = new StringBuilder();
+                if (offset == 0 && limit == Integer.MAX_VALUE) {
+                    sb.append("Pending Tasks:");
+                } else {
+                    sb.append("Pending Tasks (").append(tasks.size()).append(" total):");
+                }
+                if (tasks.isEmpty()) sb.append("\nQueue is empty.");
+                for (int i = offset; i < to; i++) {
+                    sb.append("\n").append(i + 1).append(". ").append(tasks.get(i).summary());
+                }
+                if (to < tasks.size()) {
+                    sb.append("\nMore entries available: offset=").append(to);
+                }
+                if (!missing.isEmpty()) {
+                    sb.append("\nNo answer from node(s) ").append(new TreeSet<>(missing));
+                }
+                sendResponse(replyTo, sb.toString());
+            });
+        }
+
+        // Replies with the sorted pending tasks and then streams one QUEUE line per change.
+        private void watchQueue() {
+            QueueWatcher watcher = new QueueWatcher(connection, requestId);
+            queueView.watch(watcher, snapshot -> {
+                StringBuilder sb = new StringBuilder();
+                sb.append("Watching queue (").append(snapshot.size()).append(" total, version ").append(snapshot.version).append("):");
+                snapshot.appendRows(sb, 0, snapshot.size());
+                sendResponse(sb.toString());
+            });
+        }
+
+        private void cancelTask(String request) {
+            String[] parts = request.split(";");
+            if (parts.length != 2) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid CANCEL_TASK format. Expected: CANCEL_TASK;TaskID");
+                return;
+            }
+            try {
+                cancelTask(Integer.parseInt(parts[1]));
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid TaskID format. TaskID must be an integer.");
+            }
+        }
+
+        private void cancelTask(int targetId) {
+            if (taskCoalescer.leave(targetId)) {
+                // Other requesters still wait for this execution; only this request is withdrawn.
+                ServerLog.info("CANCELLED", "One of its coalesced requests", "TaskID", targetId);
+                sendCancelled(requestId, targetId);
+                return;
+            }
+            if (cancelQueued(targetId)) {
+                sendCancelled(requestId, targetId);
+            } else if (cluster != null) {
+                // The task may be pending on (or have been stolen by) another node.
+                int replyTo = requestId;
+                cluster.cancelRemote(targetId).thenAccept(cancelled -> {
+                    if (cancelled) {
+                        advanceBatch(targetId, "CANCELLED");
+                        sendCancelled(replyTo, targetId);
+                        return;
+                    }
+                    else sendRejected(replyTo, ServerMetrics.Rejection.NOT_FOUND, "Task " + targetId + " not found or already running.");
+                });
+            } else {
+                sendRejected(ServerMetrics.Rejection.NOT_FOUND, "Task " + targetId + " not found or already running.");
+            }
+        }
+
+        // TASK_HISTORY[;client=C][;status=S][;task=ID][;after=N][;limit=N]
+        private void sendTaskHistory(String request) {
+            TaskHistory.Query query = new TaskHistory.Query();
+            String[] parts = request.split(";");
+            try {
+                for (int i = 1; i < parts.length; i++) {
+                    int eq = parts[i].indexOf('=');
+                    if (eq <= 0) throw new IllegalArgumentException("Invalid TASK_HISTORY filter: " + parts[i]);
+                    String key = parts[i].substring(0, eq);
+                    String value = parts[i].substring(eq + 1);
+                    switch (key) {
+                        case "client": query.client = value; break;
+                        case "status": query.status = TaskHistory.baseStatus(value); break;
+                        case "task":   query.taskId = Integer.parseInt(value); break;
+                        case "after":  query.after = Long.parseLong(value); break;
+                        case "limit":
+                            query.limit = Integer.parseInt(value);
+                            if (query.limit <= 0) throw new IllegalArgumentException("TASK_HISTORY limit must be positive.");
+                            break;
+                        default: throw new IllegalArgumentException("Unknown TASK_HISTORY filter: " + key);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid number in TASK_HISTORY filter. task, after and limit must be integers.");
+                return;
+            } catch (IllegalArgumentException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, e.getMessage());
+                return;
+            }
+
+            TaskHistory.Page page = taskHistory.query(query);
+            StringBuilder sb = new StringBuilder();
+            sb.append("Task History:");
+            if (page.entries.isEmpty()) {
+                sb.append(taskHistory.isEmpty() ? "\nNo task history available." : "\nNo matching task history.");
+            } else {
+                for (TaskHistory.Entry entry : page.entries) {
+                    sb.append("\n").append(entry.seq).append(". TaskID=")
+                      .append(entry.taskId).append(", Script=").append(entry.scriptName)
+                      .append(", Client=").append(entry.clientName)
+                      .append(", Status=").append(entry.status)
+                      .append(", Time=").append(getCurrentTimestamp(entry.time));
+                }
+                if (page.nextAfter > 0) {
+                    sb.append("\nMore entries available: after=").append(page.nextAfter);
+                }
+            }
+            sendResponse(sb.toString());
+        }
+
+        private void sendClusterStatus() {
+            if (cluster == null) {
+                sendResponse("Cluster mode is off (single node).");
+            } else {
+                sendResponse(cluster.describe());
+            }
+        }
+
+        private void tailTask(String request) {
+            String[] parts = request.split(";");
+            if (parts.length != 2) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid TAIL_TASK format. Expected: TAIL_TASK;TaskID");
+                return;
+            }
+            try {
+                tailTask(Integer.parseInt(parts[1]));
+            } catch (NumberFormatException e) {
+                sendRejected(ServerMetrics.Rejection.INVALID_REQUEST, "Invalid TaskID format. TaskID must be an integer.");
+            }
+        }
+
+        // Replies with the task's retained output and, while the task is pending or running,
+        // streams every further line followed by a final "finished" message.
+        private void tailTask(int taskId) {
+            TaskOutput output = taskOutputs.get(taskId);
+            if (output == null && (taskQueue.get(taskId) != null || scriptLanes.isWaiting(taskId))) {
+                output = taskOutputs.computeIfAbsent(taskId, id -> new TaskOutput(id, OUTPUT_TAIL_BYTES));
+            }
+            if (output == null) {
+                sendRejected(ServerMetrics.Rejection.NOT_FOUND, "No output available for TaskID " + taskId);
+                return;
+            }
+            output.subscribe(new OutputSubscriber(connection, requestId), snapshot -> {
+                StringBuilder sb = new StringBuilder();
+                sb.append("Output of TaskID ").append(taskId)
+                  .append(" (").append(snapshot.status == null ? "in progress" : snapshot.status).append("):");
+                if (snapshot.dropped > 0) {
+                    sb.append("\n... ").append(snapshot.dropped).append(" earlier lines dropped");
+                }
+                for (String line : snapshot.lines) {
+                    sb.append("\n").append(line);
+                }
+                sendResponse(sb.toString());
+            });
+        }
+
+        private void sendResponse(String message) {
+            sendResponse(requestId, message);
+        }
+
+        // Replies that are sent after handle() has returned (answers gathered from cluster peers)
+        // pass the request id they captured.
+        private void sendResponse(int replyTo, String message) {
+            if (connection.isBinary()) {
+                connection.sendFrame(BinaryProtocol.textReply(replyTo, BinaryProtocol.OK, System.currentTimeMillis(), message));
+            } else {
+                connection.send("STATUS;" + getCurrentTimestamp() + ";" + message);
+            }
+        }
+
+        private void sendCancelled(int replyTo, int taskId) {
+            if (connection.isBinary()) {
+                connection.sendFrame(BinaryProtocol.taskReply(replyTo, BinaryProtocol.CANCELLED, System.currentTimeMillis(), taskId));
+            } else {
+                connection.send("STATUS;" + getCurrentTimestamp() + ";TaskID " + taskId + " cancelled successfully");
+            }
+        }
+
+        void sendRejected(ServerMetrics.Rejection kind, String reason) {
+            sendRejected(requestId, kind, reason);
+        }
+
+        private void sendRejected(int replyTo, ServerMetrics.Rejection kind, String reason) {
+            metrics.rejected(kind);
+            ServerLog.info("REJECTED", reason);
+            if (connection.isBinary()) {
+                connection.sendFrame(BinaryProtocol.textReply(replyTo, BinaryProtocol.REJECTED, System.currentTimeMillis(), reason));
+            } else {
+                connection.send("STATUS;" + getCurrentTimestamp() + ";REJECTED: " + reason);
+            }
+        }
+    }
+
+    private static void processTasks() {
+        while (true) {
+            try {
+                workerSlots.acquire();
+                Task task;
+                try {
+                    task = taskQueue.take();
+                } catch (InterruptedException e) {
+                    workerSlots.release();
+                    throw e;
+                }
+                dispatch(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        taskExecutor.shutdown();
+        try {
+            if (!taskExecutor.awaitTermination(60, TimeUnit.SECONDS)) taskExecutor.shutdownNow();
+        } catch (InterruptedException e) {
+            taskExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Runs on the schedule wheel thread and queues the schedule's task the way REQUEST_TASK does, except
+    // that schedules are not held to the client rate limit. A run is skipped while the previous one is
+    // still waiting in the queue, so a busy server does not pile up copies of the same schedule.
+    private static void fireSchedule(Schedules.Schedule schedule) {
+        int previous = schedule.lastTaskId;
+        if (previous != 0 && (taskQueue.get(previous) != null || scriptLanes.isWaiting(previous))) {
+            schedule.skipped.incrementAndGet();
+            ServerLog.info("SCHEDULE", "Run skipped", "ScheduleID", schedule.id, "Reason", "TaskID " + previous + " has not started yet");
+            return;
+        }
+        boolean coalesce = taskCoalescer.coalesces(schedule.serviceNumber);
+        if (coalesce) {
+            Task joined = taskCoalescer.join(schedule.scriptName);
+            if (joined != null) {
+                schedule.lastTaskId = joined.id;
+                schedule.fired.incrementAndGet();
+                ServerLog.info("COALESCED", null, "TaskID", joined.id, "Schedule", schedule.id, "Script", schedule.scriptName);
+                return;
+            }
+        }
+        long retryNanos = serviceRateLimiter.tryAcquire(schedule.serviceNumber);
+        if (retryNanos > 0) {
+            schedule.skipped.incrementAndGet();
+            ServerLog.info("SCHEDULE", "Run skipped", "ScheduleID", schedule.id,
+                           "Reason", "rate limit exceeded for service " + schedule.serviceNumber);
+            return;
+        }
+
+        Task task = new Task(schedule.serviceNumber, schedule.clientName, schedule.priority, schedule.scriptName);
+        if (coalesce) {
+            Task winner = taskCoalescer.register(task);
+            if (winner != task) {
+                serviceRateLimiter.refund(schedule.serviceNumber);
+                schedule.lastTaskId = winner.id;
+                schedule.fired.incrementAndGet();
+                ServerLog.info("COALESCED", null, "TaskID", winner.id, "Schedule", schedule.id, "Script", schedule.scriptName);
+                return;
+            }
+        }
+        schedule.lastTaskId = task.id;
+        schedule.fired.incrementAndGet();
+        logTask(task, "QUEUED");
+        taskQueue.offer(task);
+        queueView.enqueued(task);
+        metrics.taskQueued();
+        ServerLog.info("QUEUED", null, "TaskID", task.id, "Client", task.clientName, "Script", task.scriptName,
+                       "Priority", task.priority, "Schedule", schedule.id);
+    }
+
+    // Runs the task on the worker slot the dispatcher acquired, or parks it in its script lane and
+    // gives the slot back. In cluster mode a task also needs one of its script's cluster-wide leases.
+    // A follower's request goes to the leader without waiting for the answer: the task keeps its
+    // slots while the request is out and runs, or is parked until the leader reports the script
+    // free, when the reply arrives.
+    private static void dispatch(Task task) {
+        if (!scriptLanes.admit(task)) {
+            defer(task);
+        } else if (cluster == null) {
+            runTask(task);
+        } else {
+            cluster.requestLease(task.scriptName, scriptLanes.quota(task.serviceNumber)).thenAccept(granted -> {
+                if (granted) {
+                    runTask(task);
+                } else {
+                    scriptLanes.park(task);
+                    defer(task);
+                }
+            });
+        }
+    }
+
+    private static void defer(Task task) {
+        workerSlots.release();
+        queueView.deferred(task);
+        metrics.taskDeferred();
+        ServerLog.info("DEFERRED", null, "TaskID", task.id, "Waiting for", task.scriptName);
+    }
+
+    private static void runTask(Task task) {
+        String script = task.scriptName;
+        runningTasks.incrementAndGet();
+        taskExecutor.execute(() -> {
+            TaskOutput output = taskOutputs.computeIfAbsent(task.id, id -> new TaskOutput(id, OUTPUT_TAIL_BYTES));
+            String finalStatus = "ERROR";
+            taskCoalescer.dequeued(task);
+            queueView.dequeued(task);
+            metrics.taskWaited(ServiceRegistry.metricsName(task.serviceNumber, script), TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - task.timestamp));
+            long started = System.nanoTime();
+            try {
+                ServerLog.info("EXECUTING", null, "TaskID", task.id);
+                logTask(task, "EXECUTING");
+                advanceBatch(task.id, "EXECUTING");
+                broadcastTaskEvent(task, "EXECUTING", "", "EXECUTING: TaskID " + task.id + " (" + script + ") started execution");
+
+                TaskHandler handler = services.handler(task.serviceNumber);
+                int exitCode = handler != null ? handler.run(task.id, script, output::append)
+                        : scriptRunners != null ? scriptRunners.run(script, output::append)
+                        : runForked(script, output);
+                String stat = exitCode == 0 ? "COMPLETED" : "ERROR";
+                finalStatus = stat;
+                taskCoalescer.completed(task, exitCode == 0);
+                ServerLog.info(stat, null, "TaskID", task.id);
+                broadcastTaskEvent(task, stat, exitCode != 0 ? "exit code " + exitCode : "",
+                                   stat + ": TaskID " + task.id + " (" + script + ") finished with status: " + stat);
+                logTask(task, stat + (exitCode != 0 ? "_CODE_" + exitCode : ""));
+            } catch (Exception e) {
+                ServerLog.error("ERROR", e.getMessage(), "TaskID", task.id);
+                logTask(task, "ERROR");
+                broadcastTaskEvent(task, "ERROR", String.valueOf(e.getMessage()),
+                                   "ERROR: TaskID " + task.id + " (" + script + ") encountered an error: " + e.getMessage());
+            } finally {
+                metrics.taskExecuted(ServiceRegistry.metricsName(task.serviceNumber, script), System.nanoTime() - started);
+                finishOutput(task.id, finalStatus);
+                advanceBatch(task.id, finalStatus);
+                runningTasks.decrementAndGet();
+                // A waiting task of the same script inherits both the script's quota slot and this worker slot.
+                Task next = scriptLanes.release(script);
+                if (next != null) {
+                    runTask(next);
+                } else {
+                    workerSlots.release();
+                    if (cluster != null) cluster.releaseLease(script);
+                }
+            }
+        });
+    }
+
+    // Sends a task lifecycle event to every client: the text line to text clients and a compact
+    // EVENT frame to binary ones. Each representation is built at most once per broadcast.
+    static void broadcastTaskEvent(Task task, String status, String detail, String message) {
+        broadcastLocally(task.id, task.scriptName, status, detail, message);
+        if (cluster != null) cluster.publishEvent(task.id, task.scriptName, status, detail, message);
+    }
+
+    // Delivers a task event to this node's clients only; cluster peers call this for events of tasks they do not run.
+    static void broadcastLocally(int taskId, String scriptName, String status, String detail, String message) {
+        long started = System.nanoTime();
+        if (!clientConnections.isEmpty()) {
+            // Both forms are built up front: a connection's protocol is only settled inside sendEither.
+            String formatted = "STATUS;" + getCurrentTimestamp() + ";" + message;
+            ByteBuffer event = BinaryProtocol.event(System.currentTimeMillis(), taskId, BinaryProtocol.statusCode(status),
+                                                    scriptName, detail);
+            for (ClientConnection c : clientConnections) {
+                if (!c.sendEither(formatted, event.duplicate())) clientConnections.remove(c);
+            }
+        }
+        metrics.broadcastSent(System.nanoTime() - started);
+    }
+
+    static String renderMetrics() {
+        Map<Integer, Integer> depths = new TreeMap<>();
+        taskQueue.depthsTo(depths);
+        return metrics.render(depths, scriptLanes.waitingCount(), clientConnections.size());
+    }
+
+    // -Dserver.metrics.file=<path> rewrites the file with the METRICS report every
+    // server.metrics.intervalMs (default 60 s).
+    private static void startMetricsDump() {
+        String file = System.getProperty("server.metrics.file");
+        if (file == null || file.isEmpty()) return;
+        long interval = Long.getLong("server.metrics.intervalMs", 60_000L);
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        java.nio.file.Path target = Paths.get(file).toAbsolutePath();
+        java.nio.file.Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                java.nio.file.Files.write(temp, (getCurrentTimestamp() + "\n" + renderMetrics() + "\n").getBytes(StandardCharsets.UTF_8));
+                java.nio.file.Files.move(temp, target, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                                         java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                ServerLog.warn(null, "Metrics dump failed: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // Without the runner pool the script's stderr is merged into stdout and drained on the task's
+    // own thread, so a chatty script can never fill the pipe and stall.
+    private static int runForked(String script, TaskOutput output) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder("./" + script).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line);
+            }
+        }
+        return waitForExit(process);
+    }
+
+    // Cancels a task that is still waiting in taskQueue, in its script lane or for its batch parents.
+    private static boolean cancelQueued(int taskId) {
+        Task removed = taskQueue.remove(taskId);
+        if (removed == null) {
+            removed = scriptLanes.cancel(taskId);
+        }
+        if (removed == null) {
+            TaskBatches.Outcome outcome = taskBatches.cancelWaiting(taskId);
+            if (outcome == null) return false;
+            ServerLog.info("CANCELLED", null, "TaskID", taskId);
+            logTask(outcome.cancelled.task, "CANCELLED");
+            releaseBatchTasks(outcome);
+            return true;
+        }
+        taskCoalescer.dequeued(removed);
+        queueView.cancelled(removed);
+        ServerLog.info("CANCELLED", null, "TaskID", taskId);
+        logTask(removed, "CANCELLED");
+        finishOutput(taskId, "CANCELLED");
+        advanceBatch(taskId, "CANCELLED");
+        return true;
+    }
+
+    // Moves a batch along after one of its tasks changed status; tasks outside batches are ignored.
+    static void advanceBatch(int taskId, String status) {
+        TaskBatches.Outcome outcome = taskBatches.onStatus(taskId, status);
+        if (outcome != null) releaseBatchTasks(outcome);
+    }
+
+    // Queues batch tasks whose parents have all completed and reports the ones that can no longer run.
+    private static void releaseBatchTasks(TaskBatches.Outcome outcome) {
+        for (Task task : outcome.ready) {
+            logTask(task, "QUEUED");
+            taskQueue.offer(task);
+            queueView.enqueued(task);
+            metrics.taskQueued();
+            ServerLog.info("QUEUED", "Batch parents completed", "TaskID", task.id, "Script", task.scriptName, "Priority", task.priority);
+        }
+        for (TaskBatches.Node node : outcome.skipped) {
+            Task task = node.task;
+            ServerLog.info("SKIPPED", "A batch parent did not complete", "TaskID", task.id);
+            logTask(task, "SKIPPED");
+            broadcastTaskEvent(task, "ERROR", "skipped: a parent task did not complete",
+                               "ERROR: TaskID " + task.id + " (" + task.scriptName + ") skipped: a parent task did not complete");
+        }
+    }
+
+    // Ends the task's output stream and keeps it for TAIL_TASK until newer tasks push it out.
+    private static void finishOutput(int taskId, String status) {
+        TaskOutput output = taskOutputs.get(taskId);
+        if (output == null) return;
+        output.finish(status);
+        finishedOutputs.add(taskId);
+        if (finishedOutputCount.incrementAndGet() > OUTPUT_RETAINED_TASKS) {
+            Integer oldest = finishedOutputs.poll();
+            if (oldest != null) {
+                finishedOutputCount.decrementAndGet();
+                taskOutputs.remove(oldest);
+            }
+        }
+    }
+
+    // Process.waitFor() parks in a monitor wait, which pins a virtual thread to its carrier;
+    // onExit() completes from the process reaper and lets the waiting thread unmount.
+    private static int waitForExit(Process process) throws InterruptedException {
+        if (!VIRTUAL_THREADS) return process.waitFor();
+        try {
+            return process.onExit().get().exitValue();
+        } catch (ExecutionException e) {
+            return process.waitFor();
+        }
+    }
+
+    static String getCurrentTimestamp() {
+        return getCurrentTimestamp(System.currentTimeMillis());
+    }
+
+    // Shares the log's per-second cache, so replies stamped within the same second format once.
+    static String getCurrentTimestamp(long millis) {
+        return ServerLog.timestamp(millis);
+    }
+
+    private static void logTask(Task task, String status) {
+        long now = System.currentTimeMillis();
+        taskHistory.append(task.id, task.scriptName, task.clientName, status, now);
+        if (cluster != null) cluster.publishHistory(task.id, task.scriptName, task.clientName, status, now);
+        if (journal != null) {
+            journal.append(new TaskJournal.Record(TaskJournal.EVENT, task.id, task.serviceNumber, task.priority,
+                                                  task.timestamp, now,
+                                                  task.clientName, task.scriptName, status));
+        }
+    }
+
+    // What the cluster sees of this node.
+    static class ClusterHost implements ClusterNode.Host {
+        @Override
+        public int pendingCount() {
+            return taskQueue.size();
+        }
+
+        @Override
+        public int freeWorkers() {
+            return Math.max(0, WORKER_COUNT - runningTasks.get());
+        }
+
+        @Override
+        public Map<String, Integer> runningScripts() {
+            return scriptLanes.runningCounts();
+        }
+
+        // Leaves this node at least one queued task per free worker.
+        @Override
+        public List<Task> giveTasks(int max, int toNode) {
+            List<Task> given = new ArrayList<>();
+            while (given.size() < max && taskQueue.size() > freeWorkers()) {
+                Task task = taskQueue.poll();
+                if (task == null) break;
+                taskCoalescer.dequeued(task);
+                queueView.dequeued(task);
+                given.add(task);
+            }
+            return given;
+        }
+
+        @Override
+        public void forwarded(List<Task> tasks, int toNode) {
+            for (Task task : tasks) {
+                // The task's output now lives on the node that runs it; end any TAIL_TASK streams here.
+                TaskOutput output = taskOutputs.remove(task.id);
+                if (output != null) output.finish("FORWARDED");
+                logTask(task, "FORWARDED");
+                ServerLog.info("FORWARDED", null, "TaskID", task.id, "To node", toNode);
+            }
+        }
+
+        @Override
+        public void takeBack(List<Task> tasks, int toNode) {
+            for (Task task : tasks) {
+                taskQueue.offer(task);
+                queueView.enqueued(task);
+                ServerLog.info("REQUEUED", "Node " + toNode + " did not confirm the handoff", "TaskID", task.id);
+            }
+        }
+
+        @Override
+        public void acceptTasks(List<Task> tasks, int fromNode) {
+            for (Task task : tasks) {
+                if (journal != null) {
+                    journal.append(new TaskJournal.Record(TaskJournal.PENDING, task.id, task.serviceNumber, task.priority,
+                                                          task.timestamp, System.currentTimeMillis(),
+                                                          task.clientName, task.scriptName, "QUEUED"));
+                }
+                taskQueue.offer(task);
+                queueView.enqueued(task);
+                ServerLog.info("STOLEN", null, "TaskID", task.id, "From node", fromNode, "Script", task.scriptName, "Priority", task.priority);
+            }
+        }
+
+        @Override
+        public boolean cancelLocal(int taskId) {
+            return cancelQueued(taskId);
+        }
+
+        @Override
+        public List<Task> pendingTasks(int limit) {
+            List<Task> tasks = queueView.snapshot().tasks;
+            return tasks.size() <= limit ? tasks : tasks.subList(0, limit);
+        }
+
+        @Override
+        public void onEvent(int taskId, String scriptName, String status, String detail, String message) {
+            broadcastLocally(taskId, scriptName, status, detail, message);
+            // A stolen batch task reports back to the node that holds its batch through its events.
+            advanceBatch(taskId, status);
+        }
+
+        @Override
+        public void onHistory(int taskId, String scriptName, String clientName, String status, long time) {
+            taskHistory.append(taskId, scriptName, clientName, status, time);
+        }
+
+        @Override
+        public void retryParked(String script) {
+            for (Task task : scriptLanes.unpark(script)) {
+                taskQueue.offer(task);
+                queueView.enqueued(task);
+            }
+        }
+    }
+
+    // Tasks whose script is already running at its service's quota wait in a per-script lane
+    // (ordered like taskQueue) instead of being re-queued; finishing an instance hands the script
+    // straight to the next task in its lane, so the dispatcher never spins on a busy script. The
+    // quota for service N is -Dserver.quota.N (e.g. server.quota.2004=4), else the default quota.
+    static class ScriptLanes {
+        private static final class Lane {
+            int running;
+            BucketedTaskQueue waiting;
+        }
+
+        private final int defaultQuota;
+        private final Map<Integer, Integer> quotas = new ConcurrentHashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, Lane> running = new HashMap<>();
+        private final Map<Integer, String> waitingScripts = new HashMap<>();
+
+        ScriptLanes(int defaultQuota) {
+            this.defaultQuota = Math.max(1, defaultQuota);
+        }
+
+        int quota(int serviceNumber) {
+            return quotas.computeIfAbsent(serviceNumber,
+                    n -> Math.max(1, Integer.getInteger("server.quota." + n, defaultQuota)));
+        }
+
+        // Reserves a slot of the task's script and returns true, or parks the task behind the running instances.
+        boolean admit(Task task) {
+            int quota = quota(task.serviceNumber);
+            lock.lock();
+            try {
+                Lane lane = running.computeIfAbsent(task.scriptName, s -> new Lane());
+                if (lane.running < quota) {
+                    lane.running++;
+                    return true;
+                }
+                if (lane.waiting == null) lane.waiting = new BucketedTaskQueue();
+                lane.waiting.offer(task);
+                waitingScripts.put(task.id, task.scriptName);
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Gives back the slot admit() reserved for the task and parks the task in its lane instead.
+        void park(Task task) {
+            lock.lock();
+            try {
+                Lane lane = running.get(task.scriptName);
+                lane.running--;
+                if (lane.waiting == null) lane.waiting = new BucketedTaskQueue();
+                lane.waiting.offer(task);
+                waitingScripts.put(task.id, task.scriptName);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Removes the tasks waiting for the script, or for every script with no running instance if
+        // script is null, so they can be dispatched again.
+        List<Task> unpark(String script) {
+            List<Task> tasks = new ArrayList<>();
+            lock.lock();
+            try {
+                for (Iterator<Map.Entry<String, Lane>> it = running.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<String, Lane> entry = it.next();
+                    Lane lane = entry.getValue();
+                    if (script == null ? lane.running > 0 : !script.equals(entry.getKey())) continue;
+                    if (lane.waiting != null) {
+                        for (Task task; (task = lane.waiting.poll()) != null; ) {
+                            waitingScripts.remove(task.id);
+                            tasks.add(task);
+                        }
+                    }
+                    if (lane.running == 0) it.remove();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return tasks;
+        }
+
+        Map<String, Integer> runningCounts() {
+            Map<String, Integer> counts = new HashMap<>();
+            lock.lock();
+            try {
+                running.forEach((script, lane) -> {
+                    if (lane.running > 0) counts.put(script, lane.running);
+                });
+            } finally {
+                lock.unlock();
+            }
+            return counts;
+        }
+
+        // Returns the next waiting task for the script (which keeps the finished task's slot), or frees the slot.
+        Task release(String script) {
+            lock.lock();
+            try {
+                Lane lane = running.get(script);
+                if (lane == null) return null;
+                Task next = lane.waiting == null ? null : lane.waiting.poll();
+                if (next != null) {
+                    waitingScripts.remove(next.id);
+                } else if (--lane.running == 0) {
+                    running.remove(script);
+                }
+                return next;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Task cancel(int taskId) {
+            lock.lock();
+            try {
+                String script = waitingScripts.remove(taskId);
+                return script == null ? null : running.get(script).waiting.remove(taskId);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int waitingCount() {
+            lock.lock();
+            try {
+                return waitingScripts.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isWaiting(int taskId) {
+            lock.lock();
+            try {
+                return waitingScripts.containsKey(taskId);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void addWaitingTo(Collection<Task> target) {
+            lock.lock();
+            try {
+                for (Lane lane : running.values()) {
+                    if (lane.waiting != null) lane.waiting.snapshotTo(target);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Virtual threads are looked up reflectively so the server still builds and runs on JDKs
+    // without them (e.g. 17); there -Dserver.threads=virtual falls back to platform threads.
+    static class VirtualThreads {
+        private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+        private static final Method NEW_PER_TASK_EXECUTOR = lookup(Executors.class, "newVirtualThreadPerTaskExecutor");
+
+        private static Method lookup(Class<?> owner, String name) {
+            try {
+                return owner.getMethod(name);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        static boolean isSupported() {
+            if (OF_VIRTUAL != null && NEW_PER_TASK_EXECUTOR != null) return true;
+            ServerLog.warn(null, "Virtual threads are not available on Java " + System.getProperty("java.version")
+                                 + "; using platform threads");
+            return false;
+        }
+
+        static ThreadFactory threadFactory(String namePrefix) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                Class<?> builderType = OF_VIRTUAL.getReturnType();
+                builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+                return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot create virtual thread factory", e);
+            }
+        }
+
+        static ExecutorService newThreadPerTaskExecutor() {
+            try {
+                return (ExecutorService) NEW_PER_TASK_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot create virtual thread executor", e);
+            }
+        }
+    }
+}
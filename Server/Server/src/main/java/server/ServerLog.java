@@ -0,0 +1,307 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous server log. A call records the event (level, tag, message and key/value fields, all
+// unformatted) in a bounded lock-free ring and returns; a single writer thread formats whatever has
+// accumulated and writes it in one batch, so request handling never waits for console or disk I/O.
+// If the ring is full the event is dropped and counted (see METRICS) rather than blocking the caller.
+//
+//   -Dserver.log.level=DEBUG|INFO|WARN|ERROR   (INFO)
+//   -Dserver.log.file=<path>                   (unset: INFO and below to stdout, WARN and up to stderr)
+//   -Dserver.log.maxBytes / maxFiles           rotate the file at 64 MB, keeping <path>.1 .. <path>.5
+//   -Dserver.log.format=text|kv                text:  2026-01-01 12:00:00 - [QUEUED] TaskID: 101 | Client: Client1
+//                                              kv:    time=2026-01-01T12:00:00.123 level=INFO event=QUEUED TaskID=101 Client=Client1
+//   -Dserver.log.bufferSize                    ring capacity in events (65536)
+final class ServerLog {
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static final class Event {
+        final Level level;
+        final long time;
+        final String tag;
+        final String message;
+        final Object[] fields;
+
+        Event(Level level, long time, String tag, String message, Object[] fields) {
+            this.level = level;
+            this.time = time;
+            this.tag = tag;
+            this.message = message;
+            this.fields = fields;
+        }
+    }
+
+    // Formatted text of one wall-clock second; timestamps within the same second reuse it.
+    private static final class Second {
+        final long second;
+        final String text;
+
+        Second(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private static volatile Second lastSecond = new Second(-1, "");
+    private static final String[] MILLIS = new String[1000];
+
+    static {
+        for (int i = 0; i < MILLIS.length; i++) {
+            MILLIS[i] = String.format("%03d", i);
+        }
+    }
+
+    private static final Level THRESHOLD = Level.valueOf(System.getProperty("server.log.level", "INFO").toUpperCase());
+    private static final boolean KV_FORMAT = "kv".equalsIgnoreCase(System.getProperty("server.log.format", "text"));
+    private static final ServerLog INSTANCE = new ServerLog(Integer.getInteger("server.log.bufferSize", 1 << 16),
+                                                            System.getProperty("server.log.file"),
+                                                            Long.getLong("server.log.maxBytes", 64L << 20),
+                                                            Integer.getInteger("server.log.maxFiles", 5));
+
+    // Bounded multi-producer, single-consumer ring: slot i is free for the producer that claims
+    // position p when sequences[i] == p, and holds an event for the writer when it is p + 1.
+    private final Event[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private final Thread writer;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private OutputStream fileOut;
+    private long fileBytes;
+    private final StringBuilder out = new StringBuilder();
+    private final StringBuilder err = new StringBuilder();
+
+    private ServerLog(int capacity, String file, long maxBytes, int maxFiles) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Event[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.file = file == null || file.isEmpty() ? null : Paths.get(file);
+        this.maxBytes = Math.max(1 << 16, maxBytes);
+        this.maxFiles = Math.max(1, maxFiles);
+        this.writer = new Thread(this::run, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-shutdown"));
+    }
+
+    static boolean enabled(Level level) {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    // fields alternate key, value; tag and message may be null.
+    static void debug(String tag, String message, Object... fields) {
+        if (enabled(Level.DEBUG)) INSTANCE.offer(new Event(Level.DEBUG, System.currentTimeMillis(), tag, message, fields));
+    }
+
+    static void info(String tag, String message, Object... fields) {
+        if (enabled(Level.INFO)) INSTANCE.offer(new Event(Level.INFO, System.currentTimeMillis(), tag, message, fields));
+    }
+
+    static void warn(String tag, String message, Object... fields) {
+        if (enabled(Level.WARN)) INSTANCE.offer(new Event(Level.WARN, System.currentTimeMillis(), tag, message, fields));
+    }
+
+    static void error(String tag, String message, Object... fields) {
+        if (enabled(Level.ERROR)) INSTANCE.offer(new Event(Level.ERROR, System.currentTimeMillis(), tag, message, fields));
+    }
+
+    static long written() {
+        return INSTANCE.written.sum();
+    }
+
+    static long dropped() {
+        return INSTANCE.dropped.sum();
+    }
+
+    // "yyyy-MM-dd HH:mm:ss" in the server's time zone, formatted at most once per second.
+    static String timestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        Second cached = lastSecond;
+        if (cached.second != second) {
+            cached = new Second(second, TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(millis)));
+            lastSecond = cached;
+        }
+        return cached.text;
+    }
+
+    private void offer(Event event) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long available = sequences.get(index) - pos;
+            if (available == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots[index] = event;
+                    sequences.lazySet(index, pos + 1);
+                    break;
+                }
+                pos = tail.get();
+            } else if (available < 0) {
+                dropped.increment();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    // Writer thread only.
+    private Event poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) return null;
+        Event event = slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, head + slots.length);
+        head++;
+        return event;
+    }
+
+    private void run() {
+        while (true) {
+            Event event = poll();
+            if (event == null) {
+                flush();
+                if (closed) return;
+                sleeping = true;
+                // Re-check after announcing the sleep so an event offered in between is not missed.
+                if ((event = poll()) == null) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                sleeping = false;
+                if (event == null) continue;
+            }
+            append(event);
+            written.increment();
+            if (out.length() + err.length() >= 64 * 1024) flush();
+        }
+    }
+
+    private void append(Event event) {
+        StringBuilder sb = file == null && event.level.compareTo(Level.WARN) >= 0 ? err : out;
+        if (KV_FORMAT) {
+            sb.append("time=").append(timestamp(event.time).replace(' ', 'T'))
+              .append('.').append(MILLIS[Math.floorMod((int) (event.time % 1000), 1000)])
+              .append(" level=").append(event.level);
+            if (event.tag != null) appendValue(sb.append(" event="), event.tag);
+            if (event.message != null) appendValue(sb.append(" msg="), event.message);
+            for (int i = 0; i + 1 < event.fields.length; i += 2) {
+                appendValue(sb.append(' ').append(event.fields[i]).append('='), String.valueOf(event.fields[i + 1]));
+            }
+        } else {
+            sb.append(timestamp(event.time)).append(" - ");
+            if (event.tag != null) sb.append('[').append(event.tag).append("] ");
+            boolean first = true;
+            if (event.message != null) {
+                sb.append(event.message);
+                first = false;
+            }
+            for (int i = 0; i + 1 < event.fields.length; i += 2) {
+                if (!first) sb.append(" | ");
+                sb.append(event.fields[i]).append(": ").append(event.fields[i + 1]);
+                first = false;
+            }
+        }
+        sb.append('\n');
+    }
+
+    private static void appendValue(StringBuilder sb, String value) {
+        if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('"') >= 0 || value.indexOf('=') >= 0) {
+            sb.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        } else {
+            sb.append(value);
+        }
+    }
+
+    private void flush() {
+        if (file == null) {
+            write(System.out, out);
+            write(System.err, err);
+            return;
+        }
+        if (out.length() == 0) return;
+        byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+        out.setLength(0);
+        try {
+            if (fileOut != null && fileBytes > 0 && fileBytes + bytes.length > maxBytes) {
+                fileOut.close();
+                fileOut = null;
+                shift();
+            }
+            if (fileOut == null) open();
+            fileOut.write(bytes);
+            fileOut.flush();
+            fileBytes += bytes.length;
+        } catch (IOException e) {
+            System.err.println(timestamp(System.currentTimeMillis()) + " - Log write to " + file + " failed: " + e.getMessage());
+        }
+    }
+
+    private static void write(PrintStream stream, StringBuilder sb) {
+        if (sb.length() == 0) return;
+        stream.print(sb);
+        stream.flush();
+        sb.setLength(0);
+    }
+
+    // Appends to the log file, shifting it away first if it is already full.
+    private void open() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        if (Files.exists(file) && Files.size(file) >= maxBytes) shift();
+        fileOut = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileBytes = Files.size(file);
+    }
+
+    // <file>.N-1 becomes <file>.N, ..., <file> becomes <file>.1; the oldest is deleted.
+    private void shift() throws IOException {
+        Files.deleteIfExists(Paths.get(file + "." + maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path from = Paths.get(file + "." + i);
+            if (Files.exists(from)) Files.move(from, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Lets the writer drain what is already in the ring before the JVM exits.
+    private void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
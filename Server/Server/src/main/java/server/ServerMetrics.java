@@ -0,0 +1,161 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for the METRICS command and the periodic metrics dump.
+// Recording only touches pre-sized atomic arrays and LongAdders, so it does not allocate and can
+// stay on the request and dispatch paths; formatting happens when a report is rendered.
+class ServerMetrics {
+    enum Rejection {
+        VALIDATION, INVALID_REQUEST, INVALID_SERVICE, RATE_LIMIT_CLIENT, RATE_LIMIT_SERVICE, NOT_FOUND
+    }
+
+    // Log-linear histogram of nanosecond values: 16 sub-buckets per power of two, so any
+    // reported percentile is within ~6% of the recorded value.
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts.incrementAndGet(index(nanos));
+            count.increment();
+            sum.add(nanos);
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        // Upper bound of the bucket holding the q-th quantile, or 0 if nothing was recorded.
+        long percentile(double q) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        String summary() {
+            long n = count();
+            if (n == 0) return "count=0";
+            return "count=" + n
+                   + " mean=" + millis(sum.sum() / n)
+                   + " p50=" + millis(percentile(0.50))
+                   + " p99=" + millis(percentile(0.99))
+                   + " p999=" + millis(percentile(0.999))
+                   + " max=" + millis(max.get());
+        }
+
+        private static int index(long v) {
+            if (v < SUB) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int mantissa = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + mantissa;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB) return index;
+            int shift = index / SUB - 1;
+            long lower = (long) (SUB + index % SUB) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.3fms", nanos / 1_000_000.0);
+        }
+    }
+
+    private static final class ScriptTimes {
+        final Histogram wait = new Histogram();
+        final Histogram execution = new Histogram();
+    }
+
+    private final long startedAt = System.currentTimeMillis();
+    private final Map<String, ScriptTimes> scripts = new ConcurrentHashMap<>();
+    private final LongAdder[] rejections = new LongAdder[Rejection.values().length];
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final Histogram broadcast = new Histogram();
+
+    ServerMetrics() {
+        for (int i = 0; i < rejections.length; i++) rejections[i] = new LongAdder();
+    }
+
+    void taskQueued() {
+        queued.increment();
+    }
+
+    void taskDeferred() {
+        deferred.increment();
+    }
+
+    void rejected(Rejection reason) {
+        rejections[reason.ordinal()].increment();
+    }
+
+    void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    void taskWaited(String script, long nanos) {
+        times(script).wait.record(nanos);
+    }
+
+    void taskExecuted(String script, long nanos) {
+        times(script).execution.record(nanos);
+    }
+
+    void broadcastSent(long nanos) {
+        broadcast.record(nanos);
+    }
+
+    private ScriptTimes times(String script) {
+        ScriptTimes times = scripts.get(script);
+        return times != null ? times : scripts.computeIfAbsent(script, s -> new ScriptTimes());
+    }
+
+    // queueDepths maps priority to queued tasks; laneWaiting counts tasks parked behind a running script.
+    String render(Map<Integer, Integer> queueDepths, int laneWaiting, int connections) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Metrics:");
+        sb.append("\nuptime_ms=").append(System.currentTimeMillis() - startedAt);
+        sb.append("\nconnections=").append(connections).append(" opened_total=").append(connectionsOpened.sum());
+        sb.append("\ntasks_queued_total=").append(queued.sum()).append(" deferred_total=").append(deferred.sum());
+        sb.append("\nqueue_depth:");
+        if (queueDepths.isEmpty()) sb.append(" empty");
+        for (Map.Entry<Integer, Integer> depth : queueDepths.entrySet()) {
+            sb.append(" priority").append(depth.getKey()).append('=').append(depth.getValue());
+        }
+        sb.append(" waiting_for_script=").append(laneWaiting);
+        sb.append("\nrejections:");
+        for (Rejection reason : Rejection.values()) {
+            sb.append(' ').append(reason.name().toLowerCase()).append('=').append(rejections[reason.ordinal()].sum());
+        }
+        sb.append("\nbroadcast ").append(broadcast.summary());
+        sb.append("\nlog_events_total=").append(ServerLog.written()).append(" dropped_total=").append(ServerLog.dropped());
+        for (Map.Entry<String, ScriptTimes> entry : new java.util.TreeMap<>(scripts).entrySet()) {
+            sb.append("\nwait[").append(entry.getKey()).append("] ").append(entry.getValue().wait.summary());
+            sb.append("\nexec[").append(entry.getKey()).append("] ").append(entry.getValue().execution.summary());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+// Service numbers accepted by REQUEST_TASK, REQUEST_BATCH and SCHEDULE and how each one runs. Every
+// service has a script name, which is what quotas, leases, history and events refer to; by default
+// the script is also what runs. -Dserver.handler.<service> runs the service inside the JVM instead:
+//   script        fork the script (default)
+//   native        the built-in handler: 2003 SystemMonitorHandler, 2004 FileAuditHandler
+//   <class name>  a TaskHandler implementation with a public no-argument constructor
+// A value that cannot be honoured is logged and the service keeps running its script.
+class ServiceRegistry {
+    static final int LOGIN_SERVICE = 2005;
+
+    private static final Map<Integer, String> SCRIPTS = Map.of(
+            2001, "user_setup.sh",
+            2002, "dir_perms.sh",
+            2003, "system_monitor.sh",
+            2004, "file_audit.sh");
+    private static final Map<Integer, Supplier<TaskHandler>> NATIVE = Map.of(
+            2003, SystemMonitorHandler::new,
+            2004, FileAuditHandler::new);
+
+    private final Map<Integer, TaskHandler> handlers = new TreeMap<>();
+
+    ServiceRegistry() {
+        for (int service : new TreeMap<>(SCRIPTS).keySet()) {
+            configure(service);
+        }
+        configure(LOGIN_SERVICE);
+    }
+
+    // Script of a service other than 2005 (whose script depends on the user), or null if unknown.
+    String scriptName(int serviceNumber) {
+        return SCRIPTS.get(serviceNumber);
+    }
+
+    static String loginScript(String userName) {
+        return "MySQL_login_" + userName + ".sh";
+    }
+
+    // Name under which METRICS reports the service's tasks. Login scripts are named after a
+    // client-supplied user and share one entry, so clients cannot add entries at will.
+    static String metricsName(int serviceNumber, String scriptName) {
+        return serviceNumber == LOGIN_SERVICE ? "MySQL_login_*.sh" : scriptName;
+    }
+
+    // The in-JVM handler of the service, or null if it runs its script.
+    TaskHandler handler(int serviceNumber) {
+        return handlers.get(serviceNumber);
+    }
+
+    private void configure(int service) {
+        String mode = System.getProperty("server.handler." + service, "script");
+        if (mode.equals("script")) return;
+        try {
+            TaskHandler handler;
+            if (mode.equals("native")) {
+                Supplier<TaskHandler> builtIn = NATIVE.get(service);
+                if (builtIn == null) throw new IllegalArgumentException("no built-in handler for this service");
+                handler = builtIn.get();
+            } else {
+                handler = Class.forName(mode).asSubclass(TaskHandler.class).getDeclaredConstructor().newInstance();
+            }
+            handlers.put(service, handler);
+            ServerLog.info(null, "Service " + service + " runs in-process (" + handler.getClass().getSimpleName() + ")");
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ServerLog.error(null, "Ignoring server.handler." + service + "=" + mode + ": " + e
+                                  + "; the service keeps running its script");
+        }
+    }
+}
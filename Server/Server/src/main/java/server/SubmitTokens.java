@@ -0,0 +1,66 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Remembers which task each recent SUBMIT token produced, so a client that resends a submit after
+// losing the reply gets the original TaskID instead of a second task. Tokens are random 64-bit
+// values chosen by the client (0 means none) and are kept for ttlMillis. Once maxTokens unexpired
+// tokens are held, new ones are not recorded and their resends are treated as new submits.
+class SubmitTokens {
+    private static final int PRUNE_INTERVAL = 1_000;
+
+    private static final class Entry {
+        final int taskId;
+        final long expiresAt;
+
+        Entry(int taskId, long expiresAt) {
+            this.taskId = taskId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxTokens;
+    private final Map<Long, Entry> tokens = new ConcurrentHashMap<>();
+    private volatile long nextPrune;
+
+    SubmitTokens(long ttlMillis, int maxTokens) {
+        this.ttlMillis = ttlMillis;
+        this.maxTokens = maxTokens;
+    }
+
+    // The TaskID recorded for the token, or 0 if there is none.
+    int taskFor(long token) {
+        if (token == 0) return 0;
+        Entry entry = tokens.get(token);
+        return entry != null && entry.expiresAt > System.currentTimeMillis() ? entry.taskId : 0;
+    }
+
+    // Records the token's task unless another submit with the same token got there first; returns
+    // the TaskID the token stands for afterwards.
+    int claim(long token, int taskId) {
+        if (token == 0 || ttlMillis <= 0) return taskId;
+        long now = System.currentTimeMillis();
+        prune(now);
+        if (tokens.size() >= maxTokens) return taskId;
+        Entry entry = new Entry(taskId, now + ttlMillis);
+        Entry existing = tokens.putIfAbsent(token, entry);
+        if (existing == null) return taskId;
+        if (existing.expiresAt > now) return existing.taskId;
+        tokens.replace(token, existing, entry);
+        return taskId;
+    }
+
+    // Points the token at the task a claimed submit was coalesced into.
+    void update(long token, int taskId) {
+        if (token == 0) return;
+        tokens.computeIfPresent(token, (t, entry) -> new Entry(taskId, entry.expiresAt));
+    }
+
+    private void prune(long now) {
+        if (now < nextPrune) return;
+        nextPrune = now + PRUNE_INTERVAL;
+        tokens.values().removeIf(e -> e.expiresAt <= now);
+    }
+}
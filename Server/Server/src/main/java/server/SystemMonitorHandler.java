@@ -0,0 +1,177 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// In-JVM replacement for system_monitor.sh (service 2003, -Dserver.handler.2003=native). Instead of
+// running top, iostat and ps it reads /proc twice, server.monitor.sampleMs (100 ms) apart, and
+// reports CPU and memory usage, per-disk I/O rates, the five busiest processes and whether the
+// monitored services have a running process. Services are listed as name:process pairs in
+// server.monitor.services; unlike the script the handler does not restart them. With
+// server.monitor.logDir set, each report is also written to metrics_<time>.log there.
+class SystemMonitorHandler implements TaskHandler {
+    // USER_HZ; the kernel reports process times in these ticks on every common Linux platform.
+    private static final int CLOCK_TICKS = 100;
+
+    private final long sampleMillis = Math.max(10, Long.getLong("server.monitor.sampleMs", 100L));
+    private final Map<String, String> services = parseServices(
+            System.getProperty("server.monitor.services", "mysql:mysqld,ssh:sshd,apache2:apache2"));
+    private final String logDir = System.getProperty("server.monitor.logDir");
+
+    private static final class Sample {
+        long cpuTotal;
+        long cpuIdle;
+        final Map<String, long[]> disks = new LinkedHashMap<>();
+        final Map<Integer, Long> processTicks = new HashMap<>();
+        final Map<Integer, String> processNames = new HashMap<>();
+    }
+
+    @Override
+    public int run(int taskId, String scriptName, Consumer<String> output) throws IOException, InterruptedException {
+        Sample first = sample();
+        long started = System.nanoTime();
+        Thread.sleep(sampleMillis);
+        Sample second = sample();
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        List<String> report = new ArrayList<>();
+        report.add("=== System Metrics (" + Server.getCurrentTimestamp() + ") ===");
+        report.add("---- CPU/Memory ----");
+        report.add(cpuLine(first, second));
+        report.add(memoryLine());
+        report.add("");
+        report.add("---- Disk I/O ----");
+        report.add(String.format("%-12s %8s %8s %10s %10s %6s", "Device", "r/s", "w/s", "rkB/s", "wkB/s", "%util"));
+        for (Map.Entry<String, long[]> disk : second.disks.entrySet()) {
+            long[] before = first.disks.get(disk.getKey());
+            if (before == null) continue;
+            long[] after = disk.getValue();
+            report.add(String.format("%-12s %8.1f %8.1f %10.1f %10.1f %6.1f", disk.getKey(),
+                    (after[0] - before[0]) / seconds, (after[2] - before[2]) / seconds,
+                    (after[1] - before[1]) / 2.0 / seconds, (after[3] - before[3]) / 2.0 / seconds,
+                    Math.min(100.0, (after[4] - before[4]) / 10.0 / seconds)));
+        }
+        report.add("");
+        report.add("---- Top 5 Processes ----");
+        report.add(String.format("%5s %7s %s", "%CPU", "PID", "COMMAND"));
+        topProcesses(first, second, seconds, report);
+        report.add("");
+        report.add("---- Service Status ----");
+        for (Map.Entry<String, String> service : services.entrySet()) {
+            boolean running = second.processNames.containsValue(service.getValue());
+            report.add(service.getKey() + ": " + (running ? "active" : "inactive"));
+        }
+
+        if (logDir != null && !logDir.isEmpty()) {
+            Path dir = Paths.get(logDir);
+            Files.createDirectories(dir);
+            Path log = dir.resolve("metrics_" + Server.getCurrentTimestamp().replace("-", "").replace(":", "").replace(' ', '_') + ".log");
+            Files.write(log, report, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            report.add("Metrics logged to: " + log);
+        }
+        report.forEach(output);
+        return 0;
+    }
+
+    private Sample sample() throws IOException {
+        Sample sample = new Sample();
+        // cpu  user nice system idle iowait irq softirq steal ...
+        String[] cpu = Files.readAllLines(Paths.get("/proc/stat")).get(0).trim().split("\\s+");
+        for (int i = 1; i <= 8 && i < cpu.length; i++) {
+            sample.cpuTotal += Long.parseLong(cpu[i]);
+        }
+        sample.cpuIdle = Long.parseLong(cpu[4]) + (cpu.length > 5 ? Long.parseLong(cpu[5]) : 0);
+
+        // major minor name reads merged sectorsRead msReading writes merged sectorsWritten msWriting inFlight msIo ...
+        for (String line : Files.readAllLines(Paths.get("/proc/diskstats"))) {
+            String[] f = line.trim().split("\\s+");
+            if (f.length < 13 || !Files.isDirectory(Paths.get("/sys/block", f[2]))
+                || f[2].startsWith("loop") || f[2].startsWith("ram")) continue;
+            sample.disks.put(f[2], new long[] {Long.parseLong(f[3]), Long.parseLong(f[5]),
+                                               Long.parseLong(f[7]), Long.parseLong(f[9]), Long.parseLong(f[12])});
+        }
+
+        try (DirectoryStream<Path> processes = Files.newDirectoryStream(Paths.get("/proc"), p -> isNumeric(p.getFileName().toString()))) {
+            for (Path process : processes) {
+                String stat;
+                try {
+                    stat = new String(Files.readAllBytes(process.resolve("stat")), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    continue; // exited in the meantime
+                }
+                // pid (comm) state ppid ... utime stime: the name may contain spaces and parentheses.
+                int open = stat.indexOf('(');
+                int close = stat.lastIndexOf(')');
+                if (open < 0 || close < open) continue;
+                String[] f = stat.substring(close + 2).split(" ");
+                if (f.length < 13) continue;
+                int pid = Integer.parseInt(process.getFileName().toString());
+                sample.processTicks.put(pid, Long.parseLong(f[11]) + Long.parseLong(f[12]));
+                sample.processNames.put(pid, stat.substring(open + 1, close));
+            }
+        }
+        return sample;
+    }
+
+    private static String cpuLine(Sample first, Sample second) {
+        long total = second.cpuTotal - first.cpuTotal;
+        long idle = second.cpuIdle - first.cpuIdle;
+        double busy = total <= 0 ? 0 : 100.0 * (total - idle) / total;
+        return String.format("%%Cpu(s): %5.1f us+sy, %5.1f id", busy, 100.0 - busy);
+    }
+
+    private static String memoryLine() throws IOException {
+        Map<String, Long> kb = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get("/proc/meminfo"))) {
+            String[] f = line.split(":\\s+|\\s+");
+            if (f.length >= 2) kb.put(f[0], Long.parseLong(f[1]));
+        }
+        long total = kb.getOrDefault("MemTotal", 0L);
+        long free = kb.getOrDefault("MemFree", 0L);
+        long cache = kb.getOrDefault("Buffers", 0L) + kb.getOrDefault("Cached", 0L) + kb.getOrDefault("SReclaimable", 0L);
+        return String.format("MiB Mem : %9.1f total, %9.1f free, %9.1f used, %9.1f buff/cache",
+                             total / 1024.0, free / 1024.0, (total - free - cache) / 1024.0, cache / 1024.0);
+    }
+
+    private static void topProcesses(Sample first, Sample second, double seconds, List<String> report) {
+        List<Map.Entry<Integer, Long>> deltas = new ArrayList<>();
+        for (Map.Entry<Integer, Long> process : second.processTicks.entrySet()) {
+            Long before = first.processTicks.get(process.getKey());
+            deltas.add(Map.entry(process.getKey(), process.getValue() - (before == null ? 0 : before)));
+        }
+        deltas.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        for (int i = 0; i < Math.min(5, deltas.size()); i++) {
+            Map.Entry<Integer, Long> process = deltas.get(i);
+            report.add(String.format("%5.1f %7d %s", 100.0 * process.getValue() / CLOCK_TICKS / seconds,
+                                     process.getKey(), second.processNames.get(process.getKey())));
+        }
+    }
+
+    private static Map<String, String> parseServices(String spec) {
+        Map<String, String> services = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            if (entry.isEmpty()) continue;
+            int colon = entry.indexOf(':');
+            services.put(colon < 0 ? entry : entry.substring(0, colon), colon < 0 ? entry : entry.substring(colon + 1));
+        }
+        return services;
+    }
+
+    private static boolean isNumeric(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) return false;
+        }
+        return !name.isEmpty();
+    }
+}
@@ -0,0 +1,262 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Dependency graphs submitted with REQUEST_BATCH. Every node of a batch gets its task (and TaskID)
+// up front; a node without parents is queued immediately, the others wait until all of their
+// parents have COMPLETED. A parent that fails or is cancelled skips every node below it. The graph
+// is kept in memory only: after a restart, queued batch tasks are recovered as ordinary tasks and
+// waiting ones are dropped. The last `retain` finished batches stay available to BATCH_STATUS.
+//
+// Node spec, nodes separated by ';':   name=service[:user][@parent[,parent...]]
+//   e.g. setup=2001;perms=2002@setup;audit=2004@perms;login=2005:alice@setup
+class TaskBatches {
+    static final int MAX_NODES = 256;
+
+    static final class Spec {
+        final String name;
+        final int serviceNumber;
+        final String userName;
+        final List<String> parents;
+
+        Spec(String name, int serviceNumber, String userName, List<String> parents) {
+            this.name = name;
+            this.serviceNumber = serviceNumber;
+            this.userName = userName;
+            this.parents = parents;
+        }
+    }
+
+    static final class Node {
+        final String name;
+        final Server.Task task;
+        final List<String> parents;
+        final List<Node> children = new ArrayList<>();
+        int waitingOn;
+        String status;
+
+        Node(String name, Server.Task task, List<String> parents) {
+            this.name = name;
+            this.task = task;
+            this.parents = parents;
+        }
+    }
+
+    static final class Batch {
+        final int id;
+        final String clientName;
+        final List<Node> nodes = new ArrayList<>();
+        int unfinished;
+
+        Batch(int id, String clientName) {
+            this.id = id;
+            this.clientName = clientName;
+        }
+    }
+
+    // What a status change set in motion: tasks that may now be queued and tasks that were skipped.
+    static final class Outcome {
+        Node cancelled;
+        final List<Server.Task> ready = new ArrayList<>();
+        final List<Node> skipped = new ArrayList<>();
+    }
+
+    private final int retain;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Integer, Batch> batches = new HashMap<>();
+    private final Map<Integer, Node> byTask = new HashMap<>();
+    private final Map<Integer, Batch> batchOfTask = new HashMap<>();
+    private final ArrayDeque<Integer> finished = new ArrayDeque<>();
+
+    TaskBatches(int retain) {
+        this.retain = Math.max(1, retain);
+    }
+
+    // Parses and validates the node specs: unique names, known parents and no cycles.
+    static List<Spec> parse(String[] parts, int from) {
+        List<Spec> specs = new ArrayList<>();
+        Map<String, Spec> byName = new HashMap<>();
+        for (int i = from; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (part.isEmpty()) continue;
+            int eq = part.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Invalid batch node: " + part + ". Expected name=service[:user][@parent,...]");
+            String name = part.substring(0, eq);
+            if (!name.matches("[A-Za-z0-9_-]+")) throw new IllegalArgumentException("Invalid batch node name: " + name);
+            String rest = part.substring(eq + 1);
+            List<String> parents = new ArrayList<>();
+            int at = rest.indexOf('@');
+            if (at >= 0) {
+                for (String parent : rest.substring(at + 1).split(",")) {
+                    if (!parent.isEmpty()) parents.add(parent);
+                }
+                rest = rest.substring(0, at);
+            }
+            String userName = null;
+            int colon = rest.indexOf(':');
+            if (colon >= 0) {
+                userName = rest.substring(colon + 1);
+                rest = rest.substring(0, colon);
+            }
+            Spec spec = new Spec(name, Integer.parseInt(rest), userName, parents);
+            if (byName.put(name, spec) != null) throw new IllegalArgumentException("Duplicate batch node name: " + name);
+            specs.add(spec);
+        }
+        if (specs.isEmpty()) throw new IllegalArgumentException("REQUEST_BATCH needs at least one task.");
+        if (specs.size() > MAX_NODES) throw new IllegalArgumentException("REQUEST_BATCH accepts at most " + MAX_NODES + " tasks.");
+
+        // Kahn's algorithm: every node must be reachable once its parents are.
+        Map<String, Integer> indegree = new HashMap<>();
+        Map<String, List<String>> children = new HashMap<>();
+        for (Spec spec : specs) {
+            indegree.put(spec.name, spec.parents.size());
+            for (String parent : spec.parents) {
+                if (!byName.containsKey(parent)) throw new IllegalArgumentException("Unknown parent " + parent + " of batch node " + spec.name);
+                children.computeIfAbsent(parent, p -> new ArrayList<>()).add(spec.name);
+            }
+        }
+        Deque<String> ready = new ArrayDeque<>();
+        indegree.forEach((name, degree) -> {
+            if (degree == 0) ready.add(name);
+        });
+        int visited = 0;
+        while (!ready.isEmpty()) {
+            visited++;
+            for (String child : children.getOrDefault(ready.poll(), Collections.emptyList())) {
+                if (indegree.merge(child, -1, Integer::sum) == 0) ready.add(child);
+            }
+        }
+        if (visited != specs.size()) throw new IllegalArgumentException("Batch dependencies contain a cycle.");
+        return specs;
+    }
+
+    // Registers a batch whose tasks were created from specs (same order) and returns the tasks to queue now.
+    List<Server.Task> register(int batchId, String clientName, List<Spec> specs, List<Server.Task> tasks) {
+        Batch batch = new Batch(batchId, clientName);
+        Map<String, Node> byName = new HashMap<>();
+        List<Server.Task> roots = new ArrayList<>();
+        for (int i = 0; i < specs.size(); i++) {
+            Spec spec = specs.get(i);
+            Node node = new Node(spec.name, tasks.get(i), spec.parents);
+            node.waitingOn = spec.parents.size();
+            node.status = node.waitingOn == 0 ? "QUEUED" : "WAITING";
+            if (node.waitingOn == 0) roots.add(node.task);
+            byName.put(spec.name, node);
+            batch.nodes.add(node);
+        }
+        for (Node node : batch.nodes) {
+            for (String parent : node.parents) {
+                byName.get(parent).children.add(node);
+            }
+        }
+        batch.unfinished = batch.nodes.size();
+        lock.lock();
+        try {
+            batches.put(batchId, batch);
+            for (Node node : batch.nodes) {
+                byTask.put(node.task.id, node);
+                batchOfTask.put(node.task.id, batch);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return roots;
+    }
+
+    // Records a task event of a batch task (EXECUTING, COMPLETED, ERROR or CANCELLED). Returns null
+    // for tasks that do not belong to a batch.
+    Outcome onStatus(int taskId, String status) {
+        lock.lock();
+        try {
+            Node node = byTask.get(taskId);
+            if (node == null || isFinal(node.status)) return null;
+            Outcome outcome = new Outcome();
+            node.status = status;
+            if (!isFinal(status)) return outcome;
+            Batch batch = batchOfTask.get(taskId);
+            finish(batch, node);
+            if (status.equals("COMPLETED")) {
+                for (Node child : node.children) {
+                    if (child.status.equals("WAITING") && --child.waitingOn == 0) {
+                        child.status = "QUEUED";
+                        outcome.ready.add(child.task);
+                    }
+                }
+            } else {
+                skipBelow(batch, node, outcome);
+            }
+            return outcome;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Cancels a task that is still waiting for its parents; null if it is not a waiting batch task.
+    Outcome cancelWaiting(int taskId) {
+        lock.lock();
+        try {
+            Node node = byTask.get(taskId);
+            if (node == null || !node.status.equals("WAITING")) return null;
+            Outcome outcome = new Outcome();
+            node.status = "CANCELLED";
+            outcome.cancelled = node;
+            Batch batch = batchOfTask.get(taskId);
+            finish(batch, node);
+            skipBelow(batch, node, outcome);
+            return outcome;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String describe(int batchId) {
+        lock.lock();
+        try {
+            Batch batch = batches.get(batchId);
+            if (batch == null) return null;
+            StringBuilder sb = new StringBuilder();
+            sb.append("Batch ").append(batch.id).append(" (").append(batch.clientName).append(", ")
+              .append(batch.nodes.size() - batch.unfinished).append(" of ").append(batch.nodes.size()).append(" finished):");
+            for (Node node : batch.nodes) {
+                sb.append("\n").append(node.name).append("=TaskID ").append(node.task.id)
+                  .append(", Script=").append(node.task.scriptName)
+                  .append(", Status=").append(node.status);
+                if (!node.parents.isEmpty()) sb.append(", After=").append(String.join(",", node.parents));
+            }
+            return sb.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with lock held.
+    private void skipBelow(Batch batch, Node failed, Outcome outcome) {
+        Deque<Node> pending = new ArrayDeque<>(failed.children);
+        while (!pending.isEmpty()) {
+            Node node = pending.poll();
+            if (!node.status.equals("WAITING")) continue;
+            node.status = "SKIPPED";
+            finish(batch, node);
+            outcome.skipped.add(node);
+            pending.addAll(node.children);
+        }
+    }
+
+    // Called with lock held.
+    private void finish(Batch batch, Node node) {
+        if (--batch.unfinished > 0) return;
+        for (Node n : batch.nodes) {
+            byTask.remove(n.task.id);
+            batchOfTask.remove(n.task.id);
+        }
+        finished.add(batch.id);
+        while (finished.size() > retain) {
+            batches.remove(finished.poll());
+        }
+    }
+
+    private static boolean isFinal(String status) {
+        return !status.equals("WAITING") && !status.equals("QUEUED") && !status.equals("EXECUTING");
+    }
+}
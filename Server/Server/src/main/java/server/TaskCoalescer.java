@@ -0,0 +1,111 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Collapses duplicate requests for services whose scripts produce the same result no matter who
+// asks. With -Dserver.coalesce.<service>=true a request for a script that already has a pending
+// task joins that task (same TaskID, one execution, one broadcast result). A service marked
+// -Dserver.idempotent.<service>=<ttlMillis> coalesces too, and a successful run's result is
+// reused for requests arriving within ttlMillis of its completion.
+class TaskCoalescer {
+    static final class Result {
+        final int taskId;
+        final long completedAt;
+
+        Result(int taskId, long completedAt) {
+            this.taskId = taskId;
+            this.completedAt = completedAt;
+        }
+    }
+
+    private static final class Pending {
+        final Server.Task task;
+        int requesters = 1;
+
+        Pending(Server.Task task) {
+            this.task = task;
+        }
+    }
+
+    private final Map<Integer, Long> resultTtls = new ConcurrentHashMap<>();
+    private final Map<Integer, Boolean> coalescing = new ConcurrentHashMap<>();
+    // Pending coalescable tasks by script name, and the same entries by task id.
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, Pending> pendingById = new ConcurrentHashMap<>();
+    private final Map<String, Result> results = new ConcurrentHashMap<>();
+
+    long resultTtl(int serviceNumber) {
+        return resultTtls.computeIfAbsent(serviceNumber, n -> Long.getLong("server.idempotent." + n, 0L));
+    }
+
+    boolean coalesces(int serviceNumber) {
+        return coalescing.computeIfAbsent(serviceNumber,
+                n -> Boolean.getBoolean("server.coalesce." + n) || resultTtl(n) > 0);
+    }
+
+    // Returns a still-fresh successful result for the script, or null.
+    Result cachedResult(int serviceNumber, String scriptName) {
+        long ttl = resultTtl(serviceNumber);
+        if (ttl <= 0) return null;
+        Result result = results.get(scriptName);
+        if (result == null) return null;
+        if (System.currentTimeMillis() - result.completedAt > ttl) {
+            results.remove(scriptName, result);
+            return null;
+        }
+        return result;
+    }
+
+    // Returns the pending task for the script after counting one more requester, or null if there is none.
+    Server.Task join(String scriptName) {
+        Pending[] joined = new Pending[1];
+        pending.computeIfPresent(scriptName, (script, entry) -> {
+            entry.requesters++;
+            joined[0] = entry;
+            return entry;
+        });
+        return joined[0] == null ? null : joined[0].task;
+    }
+
+    // Registers a newly queued task as the one later duplicates join. Returns the task that was
+    // registered first if another request for the same script won the race.
+    Server.Task register(Server.Task task) {
+        Pending entry = new Pending(task);
+        Pending existing = pending.compute(task.scriptName, (script, current) -> {
+            if (current == null) return entry;
+            current.requesters++;
+            return current;
+        });
+        if (existing != entry) return existing.task;
+        pendingById.put(task.id, entry);
+        return task;
+    }
+
+    // Drops one requester of a pending task. Returns true while other requesters still wait for
+    // it, in which case the task must keep its place in the queue.
+    boolean leave(int taskId) {
+        Pending entry = pendingById.get(taskId);
+        if (entry == null) return false;
+        boolean[] shared = new boolean[1];
+        pending.computeIfPresent(entry.task.scriptName, (script, current) -> {
+            if (current != entry || current.requesters <= 1) return current;
+            current.requesters--;
+            shared[0] = true;
+            return current;
+        });
+        return shared[0];
+    }
+
+    // The task left the queue (started or cancelled); later requests need a new execution.
+    void dequeued(Server.Task task) {
+        Pending entry = pendingById.remove(task.id);
+        if (entry != null) pending.remove(task.scriptName, entry);
+    }
+
+    void completed(Server.Task task, boolean succeeded) {
+        if (succeeded && resultTtl(task.serviceNumber) > 0) {
+            results.put(task.scriptName, new Result(task.id, System.currentTimeMillis()));
+        }
+    }
+}
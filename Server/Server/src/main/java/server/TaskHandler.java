@@ -0,0 +1,11 @@
+package server;
+
+import java.util.function.Consumer;
+
+// A service implemented inside the server's JVM instead of by a forked script (see ServiceRegistry).
+// run() is called on a worker thread with the same queueing, quotas and leases as a script run;
+// each line passed to output is retained for TAIL_TASK like a script's output line, and the
+// returned exit code decides COMPLETED (0) or ERROR. An exception counts as ERROR.
+public interface TaskHandler {
+    int run(int taskId, String scriptName, Consumer<String> output) throws Exception;
+}
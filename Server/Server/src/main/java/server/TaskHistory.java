@@ -0,0 +1,259 @@
+package server;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded task history. Events are numbered from 1 in arrival order and live in a ring of
+// primitive columns: task id, dictionary codes for script, client and status, and the event time
+// in epoch milliseconds, about 48 bytes per event with no per-event objects. Strings are interned
+// once per distinct value and timestamps are only formatted when a reply is rendered. Client and
+// status filters scan the int columns from the requested position, comparing codes rather than
+// strings. A task id lookup follows a chain instead: the task's hash bucket holds the newest event
+// in it and each event the previous one in the same bucket, so only a handful of slots are read.
+//
+// Nothing takes a history-wide lock: a writer claims a slot with an atomic counter, waits for the
+// slot's previous event to be stamped, clears the stamp, fills the columns and then stamps the slot
+// with its event number. Readers check
+// the stamp before and after reading a slot and skip slots that were overwritten meanwhile.
+class TaskHistory {
+    static final class Entry {
+        final long seq;
+        final int taskId;
+        final String scriptName;
+        final String clientName;
+        final String status;
+        final long time;
+
+        Entry(long seq, int taskId, String scriptName, String clientName, String status, long time) {
+            this.seq = seq;
+            this.taskId = taskId;
+            this.scriptName = scriptName;
+            this.clientName = clientName;
+            this.status = status;
+            this.time = time;
+        }
+    }
+
+    static final class Query {
+        Integer taskId;
+        String client;
+        String status;
+        long after;
+        int limit = Integer.MAX_VALUE;
+    }
+
+    static final class Page {
+        final List<Entry> entries;
+        // Entry number to pass as after= for the next page, or 0 when this page is the last one.
+        final long nextAfter;
+
+        Page(List<Entry> entries, long nextAfter) {
+            this.entries = entries;
+            this.nextAfter = nextAfter;
+        }
+    }
+
+    // Interned strings of one column. Codes are never reused, so a code read from a slot always
+    // resolves to the string that was written with it.
+    private static final class Dictionary {
+        private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile String[] names = new String[16];
+        private int size;
+
+        int intern(String name) {
+            Integer code = codes.get(name);
+            return code != null ? code : add(name);
+        }
+
+        // -1 if the string has never been stored.
+        int find(String name) {
+            Integer code = codes.get(name);
+            return code != null ? code : -1;
+        }
+
+        String name(int code) {
+            return names[code];
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int add(String name) {
+            lock.lock();
+            try {
+                Integer code = codes.get(name);
+                if (code != null) return code;
+                String[] current = names;
+                if (size == current.length) current = Arrays.copyOf(current, size * 2);
+                current[size] = name;
+                names = current;
+                codes.put(name, size);
+                return size++;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final int capacity;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLongArray stamps;
+    private final int[] taskIds;
+    private final int[] scripts;
+    private final int[] clients;
+    private final int[] statuses;
+    private final long[] times;
+    private final long[] previous;
+    private final AtomicLongArray buckets;
+    private final int bucketMask;
+    private final Dictionary scriptNames = new Dictionary();
+    private final Dictionary clientNames = new Dictionary();
+    private final Dictionary statusNames = new Dictionary();
+
+    TaskHistory(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.stamps = new AtomicLongArray(this.capacity);
+        this.taskIds = new int[this.capacity];
+        this.scripts = new int[this.capacity];
+        this.clients = new int[this.capacity];
+        this.statuses = new int[this.capacity];
+        this.times = new long[this.capacity];
+        this.previous = new long[this.capacity];
+        int bucketCount = Integer.highestOneBit(Math.max(2, this.capacity - 1)) << 1;
+        this.buckets = new AtomicLongArray(bucketCount);
+        this.bucketMask = bucketCount - 1;
+    }
+
+    // Statuses such as ERROR_CODE_2 are matched under their base status.
+    static String baseStatus(String status) {
+        int code = status.indexOf("_CODE_");
+        return code < 0 ? status : status.substring(0, code);
+    }
+
+    void append(int taskId, String scriptName, String clientName, String status, long time) {
+        int script = scriptNames.intern(scriptName);
+        int client = clientNames.intern(clientName);
+        int state = statusNames.intern(status);
+        long seq = sequence.incrementAndGet();
+        int slot = slot(seq);
+        // The ring can wrap while an append is still writing; the slot's previous event must be
+        // stamped before it is overwritten, or the two writers would interleave their columns.
+        long overwritten = Math.max(0, seq - capacity);
+        for (int spins = 0; stamps.get(slot) != overwritten; spins++) {
+            if (spins < 100) Thread.onSpinWait(); else Thread.yield();
+        }
+        stamps.set(slot, 0);
+        // Readers must not see any of the new columns while the slot still carries the old stamp.
+        VarHandle.storeStoreFence();
+        previous[slot] = buckets.getAndSet(bucket(taskId), seq);
+        taskIds[slot] = taskId;
+        scripts[slot] = script;
+        clients[slot] = client;
+        statuses[slot] = state;
+        times[slot] = time;
+        stamps.set(slot, seq);
+    }
+
+    boolean isEmpty() {
+        return sequence.get() == 0;
+    }
+
+    Page query(Query query) {
+        List<Entry> page = new ArrayList<>(Math.min(query.limit, 256));
+        int client = query.client == null ? -1 : clientNames.find(query.client);
+        boolean[] statusMatches = query.status == null ? null : statusCodesWithBase(query.status);
+        if ((query.client != null && client < 0) || (statusMatches != null && statusMatches.length == 0)) {
+            return new Page(page, 0);
+        }
+
+        long head = sequence.get();
+        long from = Math.max(Math.max(1, head - capacity + 1), query.after + 1);
+        long[] chain = query.taskId != null ? taskChain(query.taskId, from) : null;
+        long count = chain != null ? chain.length : head - from + 1;
+        long last = 0;
+        for (long i = 0; i < count; i++) {
+            long seq = chain != null ? chain[chain.length - 1 - (int) i] : from + i;
+            Entry entry = read(seq, query.taskId, client, statusMatches);
+            if (entry == null) continue;
+            if (page.size() == query.limit) return new Page(page, last);
+            page.add(entry);
+            last = seq;
+        }
+        return new Page(page, 0);
+    }
+
+    // The event if its slot still holds it and it passes the filters (null or -1 for none), else null.
+    private Entry read(long seq, Integer taskId, int client, boolean[] statusMatches) {
+        int slot = slot(seq);
+        if (stamps.get(slot) != seq) return null;
+        if (taskId != null && taskIds[slot] != taskId) return null;
+        if (client >= 0 && clients[slot] != client) return null;
+        int status = statuses[slot];
+        if (statusMatches != null && (status >= statusMatches.length || !statusMatches[status])) return null;
+        Entry entry = new Entry(seq, taskIds[slot], scriptNames.name(scripts[slot]), clientNames.name(clients[slot]),
+                                statusNames.name(status), times[slot]);
+        // The slot may have been reused while it was being read.
+        VarHandle.loadLoadFence();
+        return stamps.get(slot) == seq ? entry : null;
+    }
+
+    // Event numbers from the task's bucket, newest first, down to from. The chain also holds other
+    // tasks of the same bucket; read() still compares task ids. Returns null, so the caller scans
+    // instead, if a link is still being written.
+    private long[] taskChain(int taskId, long from) {
+        long[] seqs = new long[8];
+        int count = 0;
+        long seq = buckets.get(bucket(taskId));
+        while (seq >= from) {
+            int slot = slot(seq);
+            if (stamps.get(slot) != seq) {
+                if (seq + capacity > sequence.get()) return null;
+                break;
+            }
+            long prev = previous[slot];
+            VarHandle.loadLoadFence();
+            if (stamps.get(slot) != seq) break;
+            if (count == seqs.length) seqs = Arrays.copyOf(seqs, count * 2);
+            seqs[count++] = seq;
+            seq = prev;
+        }
+        return Arrays.copyOf(seqs, count);
+    }
+
+    private int bucket(int taskId) {
+        int h = taskId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & bucketMask;
+    }
+
+    // Flags the status codes whose base status is base; empty if there are none.
+    private boolean[] statusCodesWithBase(String base) {
+        int size = statusNames.size();
+        boolean[] matches = new boolean[size];
+        boolean any = false;
+        for (int code = 0; code < size; code++) {
+            if (baseStatus(statusNames.name(code)).equals(base)) {
+                matches[code] = true;
+                any = true;
+            }
+        }
+        return any ? matches : new boolean[0];
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % capacity);
+    }
+}
@@ -0,0 +1,397 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Append-only journal of task lifecycle events. Records are written into memory-mapped,
+// preallocated segment files, so an append is a copy into the page cache under a short lock;
+// a background thread forces dirty segments to disk every syncIntervalMillis (group commit).
+// Full segments are sealed and a new one is started. Once too many sealed segments pile up they
+// are compacted into one: still-pending tasks and batch tasks still WAITING for their parents are
+// kept as PENDING snapshots, and only the newest historyRetention events are carried over, plus the
+// EXECUTING event of every task that has not finished.
+//
+// Record layout: int length, int crc32(payload), payload =
+//   byte kind, int taskId, int serviceNumber, int priority, long taskTimestamp, long eventTime,
+//   then client, script and status as (unsigned short length, UTF-8 bytes).
+class TaskJournal implements Closeable {
+    static final byte EVENT = 1;
+    static final byte PENDING = 2;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACTED_SUFFIX = ".compact";
+    private static final String COMPACTION_MARKER = "compaction.pending";
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+
+    static final class Record {
+        final byte kind;
+        final int taskId;
+        final int serviceNumber;
+        final int priority;
+        final long taskTimestamp;
+        final long eventTime;
+        final String client;
+        final String script;
+        final String status;
+
+        Record(byte kind, int taskId, int serviceNumber, int priority, long taskTimestamp, long eventTime,
+               String client, String script, String status) {
+            this.kind = kind;
+            this.taskId = taskId;
+            this.serviceNumber = serviceNumber;
+            this.priority = priority;
+            this.taskTimestamp = taskTimestamp;
+            this.eventTime = eventTime;
+            this.client = client;
+            this.script = script;
+            this.status = status;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSealedSegments;
+    private final int historyRetention;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    private final List<Path> sealed = new ArrayList<>();
+    private final Thread flusher;
+    private long nextSegmentNumber;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private volatile boolean dirty;
+    private volatile boolean closed;
+
+    TaskJournal(Path directory, int segmentBytes, long syncIntervalMillis, int maxSealedSegments, int historyRetention) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSealedSegments = Math.max(2, maxSealedSegments);
+        this.historyRetention = historyRetention;
+        Files.createDirectories(directory);
+        finishCompaction();
+        sealed.addAll(listSegments());
+        nextSegmentNumber = sealed.isEmpty() ? 1 : segmentNumber(sealed.get(sealed.size() - 1)) + 1;
+
+        flusher = new Thread(() -> flushLoop(syncIntervalMillis), "journal-flusher");
+        flusher.setDaemon(true);
+    }
+
+    // Replays every record currently on disk, oldest first. Must be called before start().
+    void replay(Consumer<Record> consumer) throws IOException {
+        for (Path path : sealed) {
+            readSegment(path, consumer);
+        }
+    }
+
+    void start() throws IOException {
+        lock.lock();
+        try {
+            openSegment();
+        } finally {
+            lock.unlock();
+        }
+        flusher.start();
+    }
+
+    void append(Record record) {
+        byte[] client = utf8(record.client);
+        byte[] script = utf8(record.script);
+        byte[] status = utf8(record.status);
+        int payload = 1 + 4 * 3 + 8 * 2 + 2 * 3 + client.length + script.length + status.length;
+
+        lock.lock();
+        try {
+            if (closed) return;
+            if (segment.remaining() < HEADER_BYTES + payload) {
+                rotate();
+            }
+            int start = segment.position();
+            segment.position(start + HEADER_BYTES);
+            segment.put(record.kind)
+                   .putInt(record.taskId)
+                   .putInt(record.serviceNumber)
+                   .putInt(record.priority)
+                   .putLong(record.taskTimestamp)
+                   .putLong(record.eventTime);
+            putString(segment, client);
+            putString(segment, script);
+            putString(segment, status);
+
+            ByteBuffer body = segment.duplicate();
+            body.position(start + HEADER_BYTES).limit(start + HEADER_BYTES + payload);
+            crc.reset();
+            crc.update(body);
+            // The length is written last so a torn record is never mistaken for a complete one.
+            segment.putInt(start + 4, (int) crc.getValue());
+            segment.putInt(start, payload);
+            dirty = true;
+        } catch (IOException e) {
+            ServerLog.error(null, "Journal write failed: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            segment.force();
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.error(null, "Journal close failed: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+        flusher.interrupt();
+    }
+
+    private void flushLoop(long syncIntervalMillis) {
+        while (!closed) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(syncIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (dirty) {
+                MappedByteBuffer current;
+                lock.lock();
+                try {
+                    dirty = false;
+                    current = segment;
+                } finally {
+                    lock.unlock();
+                }
+                current.force();
+            }
+            if (sealedCount() > maxSealedSegments) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    ServerLog.error(null, "Journal compaction failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private int sealedCount() {
+        lock.lock();
+        try {
+            return sealed.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held.
+    private void openSegment() throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSegmentNumber++, SEGMENT_SUFFIX));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        sealed.add(path);
+    }
+
+    // Called with the lock held.
+    private void rotate() throws IOException {
+        segment.force();
+        channel.close();
+        openSegment();
+    }
+
+    // Rewrites every sealed segment except the active one into a single segment that keeps the
+    // active one's predecessor's number, then deletes the rest. The output is first written beside
+    // its target; a marker naming the target and the inputs to delete is then written, and only
+    // then is the output moved into place. A crash after the marker is finished on the next start
+    // (see finishCompaction), so replay never sees compacted and original records together.
+    private void compact() throws IOException {
+        List<Path> inputs;
+        lock.lock();
+        try {
+            inputs = new ArrayList<>(sealed.subList(0, sealed.size() - 1));
+        } finally {
+            lock.unlock();
+        }
+        if (inputs.size() < 2) return;
+
+        Map<Integer, Record> pending = new LinkedHashMap<>();
+        // Time of the last event of every task whose last event is EXECUTING; these are kept even
+        // when older than the retained history, so recovery still reports the task INTERRUPTED.
+        Map<Integer, Long> executing = new HashMap<>();
+        long[] historyEvents = new long[1];
+        for (Path path : inputs) {
+            readSegment(path, record -> {
+                String status = TaskHistory.baseStatus(record.status);
+                if (record.kind == PENDING || status.equals("QUEUED") || status.equals("WAITING")) {
+                    pending.put(record.taskId, record);
+                } else {
+                    pending.remove(record.taskId);
+                }
+                if (record.kind == EVENT && status.equals("EXECUTING")) {
+                    executing.put(record.taskId, record.eventTime);
+                } else {
+                    executing.remove(record.taskId);
+                }
+                if (record.kind == EVENT) historyEvents[0]++;
+            });
+        }
+
+        long skip = Math.max(0, historyEvents[0] - historyRetention);
+        Path target = inputs.get(inputs.size() - 1);
+        Path tmp = compactedFile(target);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            for (Record record : pending.values()) {
+                writeRecord(out, new Record(PENDING, record.taskId, record.serviceNumber, record.priority,
+                                            record.taskTimestamp, record.eventTime, record.client, record.script,
+                                            TaskHistory.baseStatus(record.status)));
+            }
+            long[] seen = new long[1];
+            for (Path path : inputs) {
+                readSegment(path, record -> {
+                    if (record.kind != EVENT) return;
+                    boolean running = record.status.equals("EXECUTING")
+                                      && Long.valueOf(record.eventTime).equals(executing.get(record.taskId));
+                    if (seen[0]++ < skip && !running) return;
+                    try {
+                        writeRecord(out, record);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            fc.force(true);
+        }
+
+        List<Path> obsolete = inputs.subList(0, inputs.size() - 1);
+        List<String> marker = new ArrayList<>();
+        marker.add(target.getFileName().toString());
+        for (Path path : obsolete) {
+            marker.add(path.getFileName().toString());
+        }
+        Path markerTmp = directory.resolve(COMPACTION_MARKER + ".tmp");
+        Files.write(markerTmp, marker, StandardCharsets.UTF_8);
+        try (FileChannel fc = FileChannel.open(markerTmp, StandardOpenOption.WRITE)) {
+            fc.force(true);
+        }
+        Files.move(markerTmp, directory.resolve(COMPACTION_MARKER), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        lock.lock();
+        try {
+            sealed.removeAll(obsolete);
+        } finally {
+            lock.unlock();
+        }
+        finishCompaction();
+        ServerLog.info(null, "Journal compacted " + inputs.size() + " segments (" + pending.size() + " pending tasks, "
+                             + Math.min(historyEvents[0], historyRetention) + " history events kept)");
+    }
+
+    // Completes a compaction whose marker was written: moves the output over its target, deletes the
+    // inputs it replaces and then the marker. Without a marker, a leftover output is discarded.
+    private void finishCompaction() throws IOException {
+        Path markerFile = directory.resolve(COMPACTION_MARKER);
+        if (Files.exists(markerFile)) {
+            List<String> names = Files.readAllLines(markerFile, StandardCharsets.UTF_8);
+            Path target = directory.resolve(names.get(0));
+            Path tmp = compactedFile(target);
+            if (Files.exists(tmp)) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            for (String name : names.subList(1, names.size())) {
+                Files.deleteIfExists(directory.resolve(name));
+            }
+            Files.delete(markerFile);
+        }
+        Files.deleteIfExists(directory.resolve(COMPACTION_MARKER + ".tmp"));
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX + COMPACTED_SUFFIX)) {
+            for (Path path : stream) Files.delete(path);
+        }
+    }
+
+    private static Path compactedFile(Path target) {
+        return target.resolveSibling(target.getFileName() + COMPACTED_SUFFIX);
+    }
+
+    private void writeRecord(DataOutputStream out, Record record) throws IOException {
+        byte[] client = utf8(record.client);
+        byte[] script = utf8(record.script);
+        byte[] status = utf8(record.status);
+        ByteBuffer body = ByteBuffer.allocate(1 + 4 * 3 + 8 * 2 + 2 * 3 + client.length + script.length + status.length);
+        body.put(record.kind).putInt(record.taskId).putInt(record.serviceNumber).putInt(record.priority)
+            .putLong(record.taskTimestamp).putLong(record.eventTime);
+        putString(body, client);
+        putString(body, script);
+        putString(body, status);
+        CRC32 checksum = new CRC32();
+        checksum.update(body.array());
+        out.writeInt(body.capacity());
+        out.writeInt((int) checksum.getValue());
+        out.write(body.array());
+    }
+
+    private static void readSegment(Path path, Consumer<Record> consumer) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        CRC32 checksum = new CRC32();
+        while (data.remaining() >= HEADER_BYTES) {
+            int length = data.getInt();
+            int expected = data.getInt();
+            if (length <= 0 || length > data.remaining()) break;
+            ByteBuffer body = data.slice();
+            body.limit(length);
+            checksum.reset();
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != expected) {
+                ServerLog.warn(null, "Journal " + path.getFileName() + ": checksum mismatch, ignoring the rest of the segment");
+                break;
+            }
+            consumer.accept(new Record(body.get(), body.getInt(), body.getInt(), body.getInt(), body.getLong(), body.getLong(),
+                                       getString(body), getString(body), getString(body)));
+            data.position(data.position() + length);
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) segments.add(path);
+        }
+        segments.sort(Comparator.comparingLong(TaskJournal::segmentNumber));
+        return segments;
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static byte[] utf8(String s) {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= MAX_STRING_BYTES ? bytes : Arrays.copyOf(bytes, MAX_STRING_BYTES);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Captured output of one task: the most recent lines up to maxBytes (older lines are dropped and
+// counted), plus the subscribers that are streaming it. Lines are delivered to subscribers under
+// the same lock that takes snapshots, so a subscriber sees its snapshot first and then exactly the
+// lines that are not in it. Subscribers must therefore not block (they only queue a message).
+class TaskOutput {
+    static final int MAX_LINE_LENGTH = 4096;
+
+    interface Subscriber {
+        // Returns false once the subscriber can no longer receive output.
+        boolean onLine(int taskId, String line);
+
+        void onFinished(int taskId, String status);
+    }
+
+    static final class Snapshot {
+        final List<String> lines;
+        final long dropped;
+        final String status;
+
+        Snapshot(List<String> lines, long dropped, String status) {
+            this.lines = lines;
+            this.dropped = dropped;
+            this.status = status;
+        }
+    }
+
+    private final int taskId;
+    private final int maxBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<String> lines = new ArrayDeque<>();
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private int bytes;
+    private long dropped;
+    private volatile String status;
+
+    TaskOutput(int taskId, int maxBytes) {
+        this.taskId = taskId;
+        this.maxBytes = maxBytes;
+    }
+
+    void append(String line) {
+        if (line.length() > MAX_LINE_LENGTH) line = line.substring(0, MAX_LINE_LENGTH);
+        lock.lock();
+        try {
+            lines.addLast(line);
+            bytes += line.length();
+            while (bytes > maxBytes && lines.size() > 1) {
+                bytes -= lines.removeFirst().length();
+                dropped++;
+            }
+            for (Iterator<Subscriber> it = subscribers.iterator(); it.hasNext(); ) {
+                if (!it.next().onLine(taskId, line)) it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void finish(String finalStatus) {
+        lock.lock();
+        try {
+            if (status != null) return;
+            status = finalStatus;
+            for (Subscriber subscriber : subscribers) {
+                subscriber.onFinished(taskId, finalStatus);
+            }
+            subscribers.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hands the current tail to onSnapshot and, unless the task has already finished, registers the
+    // subscriber for everything appended afterwards.
+    void subscribe(Subscriber subscriber, Consumer<Snapshot> onSnapshot) {
+        lock.lock();
+        try {
+            onSnapshot.accept(new Snapshot(new ArrayList<>(lines), dropped, status));
+            if (status == null) subscribers.add(subscriber);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Hashed timing wheel: a ring of buckets, one per tick. A timeout lands in the bucket of its
+// deadline tick, with the number of full turns of the wheel still to wait; each tick the wheel
+// thread walks one bucket, fires the timeouts whose turns are used up and decrements the rest.
+// Callers never touch the buckets: schedule() and cancel() only push onto lock-free queues that
+// the wheel thread drains at the start of each tick, so both are O(1) and never block. Timeouts
+// fire on the wheel thread, up to one tick late; the callback must not block.
+class TimingWheel<T> {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+    // Bounds the work one tick spends moving new timeouts into buckets.
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    static final class Timeout<T> {
+        final T value;
+        final long deadlineTick;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long rounds;
+        private Bucket<T> bucket;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        Timeout(T value, long deadlineTick) {
+            this.value = value;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private static final class Bucket<T> {
+        Timeout<T> head;
+        Timeout<T> tail;
+
+        void add(Timeout<T> timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            if (tail == null) head = timeout;
+            else tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout<T> timeout) {
+            if (timeout.prev == null) head = timeout.next;
+            else timeout.prev.next = timeout.next;
+            if (timeout.next == null) tail = timeout.prev;
+            else timeout.next.prev = timeout.prev;
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private final long tickMillis;
+    private final Bucket<T>[] wheel;
+    private final int mask;
+    private final Consumer<T> onExpiry;
+    private final Queue<Timeout<T>> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout<T>> cancelled = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread worker;
+    // Owned by the worker thread.
+    private long tick;
+
+    TimingWheel(String name, long tickMillis, int ticksPerWheel, Consumer<T> onExpiry) {
+        this.tickMillis = Math.max(1, tickMillis);
+        int size = Integer.highestOneBit(Math.max(2, ticksPerWheel - 1)) << 1;
+        @SuppressWarnings("unchecked")
+        Bucket<T>[] wheel = (Bucket<T>[]) new Bucket<?>[size];
+        this.wheel = wheel;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket<>();
+        }
+        this.mask = size - 1;
+        this.onExpiry = onExpiry;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    void start() {
+        worker.start();
+    }
+
+    Timeout<T> schedule(T value, long delayMillis) {
+        long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        long deadline = Math.max(0, now + delayMillis);
+        Timeout<T> timeout = new Timeout<>(value, (deadline + tickMillis - 1) / tickMillis);
+        added.add(timeout);
+        return timeout;
+    }
+
+    // Returns false if the timeout has already fired or was cancelled before.
+    boolean cancel(Timeout<T> timeout) {
+        if (!timeout.state.compareAndSet(PENDING, CANCELLED)) return false;
+        cancelled.add(timeout);
+        return true;
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos((tick + 1) * tickMillis);
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            removeCancelled();
+            transferAdded();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        for (Timeout<T> timeout; (timeout = cancelled.poll()) != null; ) {
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout<T> timeout = added.poll();
+            if (timeout == null) return;
+            if (timeout.state.get() == CANCELLED) continue;
+            // A deadline that has already passed goes into the current bucket and fires this tick.
+            long target = Math.max(timeout.deadlineTick, tick);
+            timeout.rounds = (target - tick) / wheel.length;
+            wheel[(int) (target & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket<T> bucket) {
+        Timeout<T> timeout = bucket.head;
+        while (timeout != null) {
+            Timeout<T> next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                bucket.remove(timeout);
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        onExpiry.accept(timeout.value);
+                    } catch (RuntimeException e) {
+                        ServerLog.error(null, worker.getName() + " callback failed: " + e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+}
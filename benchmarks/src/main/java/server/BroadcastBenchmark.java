@@ -0,0 +1,39 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Fan-out of one task event to every connected client, half of them text and half binary.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "1000"})
+    int connections;
+
+    Server.Task task;
+
+    @Setup
+    public void connect() {
+        Server.clientConnections.clear();
+        for (int i = 0; i < connections; i++) {
+            Server.clientConnections.add(new DiscardingConnection(i % 2 == 0));
+        }
+        task = new Server.Task(2003, "BenchClient", 3, "system_monitor.sh");
+    }
+
+    @TearDown
+    public void disconnect() {
+        Server.clientConnections.clear();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        Server.broadcastTaskEvent(task, "COMPLETED", "",
+                                  "COMPLETED: TaskID " + task.id + " (system_monitor.sh) finished with status: COMPLETED");
+    }
+}
@@ -0,0 +1,49 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+// Client connection that accepts everything and keeps only a running byte count, so benchmarks
+// measure encoding and dispatch rather than sockets.
+class DiscardingConnection implements Server.ClientConnection {
+    private final boolean binary;
+    long bytes;
+
+    DiscardingConnection(boolean binary) {
+        this.binary = binary;
+    }
+
+    @Override
+    public String remoteAddress() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public boolean send(String line) {
+        bytes += line.length();
+        return true;
+    }
+
+    @Override
+    public boolean sendFrame(ByteBuffer frame) {
+        bytes += frame.remaining();
+        return true;
+    }
+
+    @Override
+    public boolean sendEither(String line, ByteBuffer frame) {
+        return binary ? sendFrame(frame) : send(line);
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    @Override
+    public void switchToBinary(String reply) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Request decode and response encode: a text and a binary REQUEST_TASK through RequestHandler
+// (parse, rate limiter, enqueue, history, QUEUED reply), QUEUE_STATUS answered from the cached
+// queue view (full listing and one page), and building the binary EVENT frame. Submitted tasks are
+// drained so the queue stays at its initial size.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dserver.ratelimit.client.default=unlimited")
+public class ProtocolBenchmark {
+    Server.RequestHandler textHandler;
+    Server.RequestHandler binaryHandler;
+    ByteBuffer submitFrame;
+
+    @Setup
+    public void setUp() {
+        textHandler = new Server.RequestHandler(new DiscardingConnection(false));
+        binaryHandler = new Server.RequestHandler(new DiscardingConnection(true));
+
+        byte[] client = "BenchClient".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 2 + 4 + 2 + client.length + 2);
+        frame.putInt(7).put(BinaryProtocol.SUBMIT).putShort((short) 2001).putInt(3)
+             .putShort((short) client.length).put(client).putShort((short) 0);
+        submitFrame = frame.flip();
+    }
+
+    @Benchmark
+    public Server.Task textSubmit() {
+        textHandler.handle("REQUEST_TASK;2001;BenchClient;3");
+        return drain();
+    }
+
+    @Benchmark
+    public Server.Task binarySubmit() {
+        binaryHandler.handleFrame(submitFrame.duplicate());
+        return drain();
+    }
+
+    @Benchmark
+    public void queueStatus() {
+        textHandler.handle("QUEUE_STATUS");
+    }
+
+    @Benchmark
+    public void queueStatusPage() {
+        textHandler.handle("QUEUE_STATUS;offset=0;limit=20");
+    }
+
+    private static Server.Task drain() {
+        Server.Task task = Server.taskQueue.poll();
+        if (task != null) Server.queueView.dequeued(task);
+        return task;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeEvent() {
+        return BinaryProtocol.event(System.currentTimeMillis(), 4242, BinaryProtocol.STATUS_COMPLETED,
+                                    "system_monitor.sh", "");
+    }
+}
@@ -0,0 +1,65 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Task history: append from one and from four threads (logTask contention) and the indexed
+// queries behind TASK_HISTORY, against a history already holding historySize entries.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskHistoryBenchmark {
+    private static final String[] CLIENTS = {"Client1", "Client2", "Client3", "Client4"};
+    private static final String[] STATUSES = {"QUEUED", "EXECUTING", "COMPLETED", "ERROR_CODE_1"};
+
+    @Param({"100000"})
+    int historySize;
+
+    TaskHistory history;
+    TaskHistory.Query byClient;
+    TaskHistory.Query byStatus;
+    int next;
+
+    @Setup
+    public void fill() {
+        history = new TaskHistory(historySize);
+        for (int i = 0; i < historySize; i++) {
+            append(history, i);
+        }
+        byClient = new TaskHistory.Query();
+        byClient.client = "Client2";
+        byClient.limit = 50;
+        byStatus = new TaskHistory.Query();
+        byStatus.status = "ERROR";
+        byStatus.limit = 50;
+    }
+
+    static void append(TaskHistory history, int i) {
+        history.append(100 + i, "file_audit.sh", CLIENTS[i & 3], STATUSES[(i >> 2) & 3], 1_767_225_600_000L + i);
+    }
+
+    @Benchmark
+    public void append() {
+        append(history, next++);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void appendContended() {
+        append(history, 100);
+    }
+
+    @Benchmark
+    public TaskHistory.Page queryByClient() {
+        return history.query(byClient);
+    }
+
+    @Benchmark
+    public TaskHistory.Page queryByStatus() {
+        return history.query(byStatus);
+    }
+}
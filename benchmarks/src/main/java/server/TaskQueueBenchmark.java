@@ -0,0 +1,72 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Scheduler queue: enqueue/dequeue and enqueue/cancel against a queue that already holds
+// queueSize tasks, uncontended and with producers and consumers on separate threads, plus the
+// sorted snapshot that QUEUE_STATUS renders (Task.compareTo).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskQueueBenchmark {
+    @Param({"100", "10000"})
+    int queueSize;
+
+    BucketedTaskQueue queue;
+    int priority;
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        queue = new BucketedTaskQueue();
+        for (int i = 0; i < queueSize; i++) {
+            queue.offer(newTask(i % 5 + 1));
+        }
+    }
+
+    static Server.Task newTask(int priority) {
+        return new Server.Task(2001, "BenchClient", priority, "user_setup.sh");
+    }
+
+    @Benchmark
+    public Server.Task offerPoll() {
+        queue.offer(newTask(++priority % 5 + 1));
+        return queue.poll();
+    }
+
+    @Benchmark
+    public Server.Task offerCancel() {
+        Server.Task task = newTask(++priority % 5 + 1);
+        queue.offer(task);
+        return queue.remove(task.id);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public void producer() {
+        queue.offer(newTask(3));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public Server.Task consumer() {
+        return queue.poll();
+    }
+
+    @Benchmark
+    public List<Server.Task> sortedSnapshot() {
+        List<Server.Task> snapshot = new ArrayList<>(queue.size());
+        queue.snapshotTo(snapshot);
+        Collections.sort(snapshot);
+        return snapshot;
+    }
+}